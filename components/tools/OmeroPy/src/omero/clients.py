@@ -21,6 +21,7 @@ finally:
 
 sys = __import__("sys")
 import threading
+import time
 import logging
 import IceImport
 import Ice
@@ -97,6 +98,7 @@ class BaseClient(object):
         self.__sf = None
         self.__uuid = None
         self.__resources = None
+        self.__sizer = None
         self.__lock = threading.RLock()
 
         # Logging
@@ -492,6 +494,42 @@ class BaseClient(object):
         except:
             return omero.constants.DEFAULTBLOCKSIZE
 
+    def getBlockSizer(self):
+        """
+        Returns the omero.util.upload.AdaptiveBlockSize used by upload,
+        write_stream and download when no block_size is given. It starts
+        from getDefaultBlockSize() and is kept for the life of this client,
+        so that each transfer starts from the size the last one reached.
+        Its getStats() method reports the chosen size and the throughput
+        achieved.
+
+        The limits are set by the "omero.block_size.min" and
+        "omero.block_size.max" properties in bytes, the latter bounded by
+        "Ice.MessageSizeMax", and the time each block should take by
+        "omero.block_size.target" in seconds.
+        """
+        from omero.util.upload import AdaptiveBlockSize
+        self.__lock.acquire()
+        try:
+            if self.__sizer is None:
+                def prop(key, default, type=int):
+                    try:
+                        return type(self.getProperty(key))
+                    except:
+                        return default
+                maximum = prop("omero.block_size.max", 64 * 1024 * 1024)
+                # Leave room for the rest of the message
+                limit = prop("Ice.MessageSizeMax",
+                             omero.constants.MESSAGESIZEMAX) * 1024 / 2
+                self.__sizer = AdaptiveBlockSize(
+                    size=self.getDefaultBlockSize(),
+                    minimum=prop("omero.block_size.min", 64 * 1024),
+                    maximum=min(maximum, limit),
+                    target=prop("omero.block_size.target", 1.0, float))
+            return self.__sizer
+        finally:
+            self.__lock.release()
+
     def joinSession(self, session):
         """
         Uses the given session uuid as name
@@ -763,7 +801,8 @@ class BaseClient(object):
     def upload(self, filename, name=None, path=None, type=None, ofile=None,
                block_size=1024):
         """
-        Utility method to upload a file to the server.
+        Utility method to upload a file to the server. If block_size is
+        None, it is chosen by getBlockSizer() as the upload proceeds.
         """
         if not self.__sf:
             raise omero.ClientError("No session. Use createSession first.")
@@ -782,7 +821,7 @@ class BaseClient(object):
         try:
 
             size = os.path.getsize(file.name)
-            if block_size > size:
+            if block_size is not None and block_size > size:
                 block_size = size
 
             if not ofile:
@@ -828,12 +867,20 @@ class BaseClient(object):
         return ofile
 
     def write_stream(self, file, prx, block_size=1024*1024):
+        sizer = None
+        if block_size is None:
+            sizer = self.getBlockSizer()
         offset = 0
         while True:
+            if sizer is not None:
+                block_size = sizer.size
             block = file.read(block_size)
             if not block:
                 break
+            start = time.time()
             prx.write(block, offset, len(block))
+            if sizer is not None:
+                sizer.record(len(block), time.time() - start)
             offset += len(block)
 
     def download(self, ofile, filename=None, block_size=1024*1024,
@@ -851,6 +898,10 @@ class BaseClient(object):
             ofile = self.__sf.getQueryService().get(
                 "OriginalFile", ofile.id.val, ctx)
 
+            sizer = None
+            if block_size is None:
+                sizer = self.getBlockSizer()
+                block_size = sizer.size
             if block_size > ofile.size.val:
                 block_size = ofile.size.val
 
@@ -871,8 +922,12 @@ class BaseClient(object):
 
             try:
                 while (offset+block_size) < size:
+                    start = time.time()
                     filehandle.write(prx.read(offset, block_size))
                     offset += block_size
+                    if sizer is not None:
+                        sizer.record(block_size, time.time() - start)
+                        block_size = sizer.size
                 filehandle.write(prx.read(offset, (size-offset)))
             finally:
                 if filename:
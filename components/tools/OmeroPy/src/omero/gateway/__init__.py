@@ -16,7 +16,7 @@
 import os
 
 import warnings
-from collections import defaultdict
+from collections import defaultdict, deque, OrderedDict
 from types import IntType, LongType, UnicodeType, ListType
 from types import BooleanType, TupleType, StringType, StringTypes
 from datetime import datetime
@@ -40,6 +40,8 @@ import Ice
 import Glacier2
 
 import traceback
+import threading
+import hashlib
 import time
 import array
 import math
@@ -1556,6 +1558,7 @@ class _BlitzGateway (object):
         self._userid = None
         self._proxies = NoProxies()
         self._tracked_services = dict()
+        self._rePool = None
         if self.c is None:
             self._resetOmeroClient()
         else:
@@ -1847,7 +1850,10 @@ class _BlitzGateway (object):
             if self.c.sf is None:  # pragma: no cover
                 logger.debug('... c.sf is None, reconnecting')
                 return self.connect()
-            return self.c.sf.keepAlive(self._proxies['admin']._getObj())
+            rv = self.c.sf.keepAlive(self._proxies['admin']._getObj())
+            if rv and self._rePool is not None:
+                self._rePool.keepAlive()
+            return rv
         except Ice.ObjectNotExistException:  # pragma: no cover
             # The connection is there, but it has been reset, because the proxy
             # no longer exists...
@@ -1936,6 +1942,7 @@ class _BlitzGateway (object):
         """
         self._connected = False
         oldC = self.c
+        self.disableRenderingEnginePool()
         for proxy in self._proxies.values():
             proxy.close()
         if oldC is not None:
@@ -2654,6 +2661,43 @@ class _BlitzGateway (object):
         rv.taint()
         return rv
 
+    def enableRenderingEnginePool(self, maxSize=8, idleTimeout=600):
+        """
+        Keeps loaded rendering engines once images are done with them, so
+        that rendering the same image again reuses them. See
+        :class:`RenderingEnginePool`.
+
+        :param maxSize:         Maximum number of idle engines kept
+        :type maxSize:          Int
+        :param idleTimeout:     Seconds after which an idle engine is closed
+        :type idleTimeout:      Number
+        :return:                The pool
+        :rtype:                 :class:`RenderingEnginePool`
+        """
+        if self._rePool is None:
+            self._rePool = RenderingEnginePool(self, maxSize, idleTimeout)
+        else:
+            self._rePool.maxSize = maxSize
+            self._rePool.idleTimeout = idleTimeout
+        return self._rePool
+
+    def disableRenderingEnginePool(self):
+        """
+        Closes the idle rendering engines kept by
+        :meth:`enableRenderingEnginePool` and stops pooling new ones.
+        """
+        if self._rePool is not None:
+            self._rePool.close()
+            self._rePool = None
+
+    def getRenderingEnginePool(self):
+        """
+        Returns the rendering engine pool, or None if not enabled.
+
+        :return:    omero.gateway.RenderingEnginePool
+        """
+        return self._rePool
+
     def getRenderingSettingsService(self):
         """
         Gets reference to the rendering settings service from
@@ -4598,18 +4642,25 @@ class _BlitzGateway (object):
             search.close()
         return rv
 
-    def getThumbnailSet(self, image_ids, max_size=64):
+    def getThumbnailSet(self, image_ids, max_size=64, cache=None):
         """
         Retrieves a number of thumbnails for image sets. If the Thumbnails
         exist in the on-disk cache they will be returned directly,
         otherwise they will be created, for more details
         see ome.api.ThumbnailStore.getThumbnailByLongestSideSet
 
+        If a client side cache is given, the version of every thumbnail's
+        rendering settings is checked with a single query, in place of the
+        query for the pixels IDs, and only thumbnails which are missing or
+        out of date are requested from the server.
+
         :param image_ids:   A list of image ids
         :param max_size:    The longest side of the image will be used
                             to calculate the size for the smaller side
                             in order to keep the aspect ratio of
                             the original image.
+        :param cache:       Optional :class:`omero.gateway.utils.
+                            ThumbnailCache`
         :return:            dictionary of strings holding a rendered JPEG
                             of the thumbnails.
         """
@@ -4620,24 +4671,26 @@ class _BlitzGateway (object):
             if ctx.getOmeroGroup() is None:
                 ctx.setOmeroGroup(-1)
             tb = self.createThumbnailStore()
-            p = omero.sys.ParametersI().addIds(image_ids)
-            sql = """select new map(
-                        i.id as im_id, p.id as pix_id
-                     )
-                     from Pixels as p join p.image as i
-                     where i.id in (:ids) """
-
-            img_pixel_ids = self.getQueryService().projection(
-                sql, p, ctx)
-            _temp = dict()
-            for e in img_pixel_ids:
-                e = unwrap(e)
-                _temp[e[0]['pix_id']] = e[0]['im_id']
+            if cache is None:
+                _temp = self._getThumbnailPixelsIds(image_ids, ctx)
+            else:
+                versions = self._getThumbnailVersions(image_ids, ctx)
+                _temp = dict()
+                for pix, (img, version) in versions.items():
+                    thumb = cache.get(pix, max_size, version)
+                    if thumb is None:
+                        _temp[pix] = img
+                    else:
+                        _resp[img] = thumb
+                if not _temp:
+                    return _resp
 
             thumbs_map = tb.getThumbnailByLongestSideSet(
                 rint(max_size), list(_temp), ctx)
             for (pix, thumb) in thumbs_map.items():
                 _resp[_temp[pix]] = thumb
+                if cache is not None:
+                    cache.put(pix, max_size, versions[pix][1], thumb)
         except Exception:
             logger.error(traceback.format_exc())
         finally:  # pragma: no cover
@@ -4645,6 +4698,242 @@ class _BlitzGateway (object):
                 tb.close()
         return _resp
 
+    def _getThumbnailPixelsIds(self, image_ids, ctx):
+        """
+        Returns a dict of {pixelsId: imageId} for the given images.
+        """
+        p = omero.sys.ParametersI().addIds(image_ids)
+        sql = """select new map(
+                    i.id as im_id, p.id as pix_id
+                 )
+                 from Pixels as p join p.image as i
+                 where i.id in (:ids) """
+
+        img_pixel_ids = self.getQueryService().projection(sql, p, ctx)
+        rv = dict()
+        for e in img_pixel_ids:
+            e = unwrap(e)
+            rv[e[0]['pix_id']] = e[0]['im_id']
+        return rv
+
+    def _getThumbnailVersions(self, image_ids, ctx):
+        """
+        Returns a dict of {pixelsId: (imageId, version)} for the given
+        images, where the version changes whenever a rendering def of the
+        pixels is saved. It includes the current user's ID, since each user
+        sees thumbnails of their own settings.
+        """
+        p = omero.sys.ParametersI().addIds(image_ids)
+        rows = self.getQueryService().projection(
+            "select p.id, i.id, max(r.details.updateEvent.id) "
+            "from Pixels p join p.image i left outer join p.settings r "
+            "where i.id in (:ids) group by p.id, i.id", p, ctx)
+        uid = self.getUserId()
+        rv = dict()
+        for pix, img, event in (unwrap(row) for row in rows):
+            rv[pix] = (img, "%s-%s" % (uid, event or 0))
+        return rv
+
+    def _loadThumbnailBatches(self, batches, max_size, workers, callback,
+                              failed=None):
+        """
+        Loads batches of thumbnails with getThumbnailByLongestSideSet, on up
+        to workers threads, in the order given. Each thread keeps one
+        ThumbnailStore per group, created in the context of that group, so
+        that a store is never moved from one group to another.
+
+        :param batches:     List of (ctx, {pixelsId: imageId}) tuples
+        :param max_size:    The longest side of the thumbnails
+        :param workers:     Number of threads
+        :param callback:    Called with (imageId, thumbnail) as each
+                            thumbnail arrives, one call at a time. May be
+                            None. Its errors are logged.
+        :param failed:      Optional dict, filled with {imageId: exception}
+                            for the images of the batches which failed. If
+                            None, the first failure is raised once every
+                            batch has been tried.
+        :return:            Dict of {imageId: thumbnail}
+        """
+        from Queue import Queue, Empty
+        work = Queue()
+        for batch in batches:
+            work.put(batch)
+        rv = dict()
+        errors = []
+        lock = threading.Lock()
+
+        def load():
+            stores = dict()
+            try:
+                while True:
+                    try:
+                        ctx, pixels = work.get_nowait()
+                    except Empty:
+                        break
+                    try:
+                        gid = ctx.get('omero.group')
+                        tb = stores.get(gid)
+                        if tb is None:
+                            tb = self.c.sf.createThumbnailStore(ctx)
+                            stores[gid] = tb
+                        thumbs = tb.getThumbnailByLongestSideSet(
+                            rint(max_size), list(pixels), ctx)
+                    except Exception, e:
+                        logger.error(traceback.format_exc())
+                        with lock:
+                            errors.append(e)
+                            if failed is not None:
+                                for img in pixels.values():
+                                    failed[img] = e
+                        continue
+                    with lock:
+                        for pix, thumb in thumbs.items():
+                            rv[pixels[pix]] = thumb
+                            if callback is None:
+                                continue
+                            # A failing callback must not end the worker
+                            try:
+                                callback(pixels[pix], thumb)
+                            except Exception:
+                                logger.error(traceback.format_exc())
+            finally:
+                for tb in stores.values():
+                    try:
+                        tb.close()
+                    except Exception:
+                        logger.error(traceback.format_exc())
+
+        threads = [threading.Thread(target=load)
+                   for i in range(max(1, min(workers, len(batches))))]
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join()
+        if errors and failed is None:
+            raise errors[0]
+        return rv
+
+    def getThumbnailsByPixelsIds(self, pixels_ids, max_size=64, workers=4,
+                                 callback=None, failed=None):
+        """
+        Retrieves thumbnails for pixels from any number of groups, without
+        relying on the all groups context for the ThumbnailStore.
+
+        The pixels are split by owning group, with a single query, and each
+        group's pixels are requested in one batch in the context of that
+        group. Batches are issued concurrently over a pool of workers
+        thumbnail stores, each reused for every group it handles, largest
+        group first, so that the time taken depends on the largest group
+        rather than on the number of groups. Each worker keeps one thumbnail
+        store per group it handles.
+
+        :param pixels_ids:  A list of pixels ids
+        :param max_size:    The longest side of the thumbnails
+        :param workers:     Number of thumbnail stores to use
+        :param callback:    Optional, called with (pixelsId, thumbnail) as
+                            each group's batch arrives
+        :param failed:      Optional dict, filled with {pixelsId: exception}
+                            for groups whose batch failed. If None, the
+                            first failure is raised
+        :return:            dictionary of strings holding a rendered JPEG
+                            of the thumbnails, by pixels id.
+        """
+        if not pixels_ids:
+            return dict()
+        ctx = self.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(-1)
+        p = omero.sys.ParametersI().addIds(pixels_ids)
+        rows = self.getQueryService().projection(
+            "select p.id, p.details.group.id from Pixels p "
+            "where p.id in (:ids)", p, ctx)
+        groups = defaultdict(dict)
+        for pix, gid in (unwrap(row) for row in rows):
+            groups[gid][pix] = pix
+        batches = []
+        for gid, pixels in sorted(groups.items(), key=lambda x: -len(x[1])):
+            gctx = self.SERVICE_OPTS.copy()
+            gctx.setOmeroGroup(gid)
+            batches.append((gctx, pixels))
+        return self._loadThumbnailBatches(batches, max_size, workers,
+                                          callback, failed)
+
+    def streamThumbnailSet(self, image_ids, callback, max_size=64,
+                           workers=4, chunkSize=8, cache=None, failed=None):
+        """
+        Retrieves thumbnails like :meth:`getThumbnailSet`, but passes each
+        one to the callback as soon as it arrives instead of waiting for
+        the whole set, for filling in large grids of images.
+
+        Thumbnails already stored on the server at this size are requested
+        first, in a single call, so they come back straight away. The rest,
+        which the server may have to generate, are requested in chunks of
+        chunkSize images over a pool of workers thumbnail stores, so that
+        they are generated in parallel rather than one after the other.
+
+        :param image_ids:   A list of image ids
+        :param callback:    Called with (imageId, thumbnail) for each
+                            thumbnail, from the worker threads but never
+                            concurrently
+        :param max_size:    The longest side of the thumbnails
+        :param workers:     Number of thumbnail stores to use
+        :param chunkSize:   Number of images per request for thumbnails
+                            which are not stored yet
+        :param cache:       Optional :class:`omero.gateway.utils.
+                            ThumbnailCache`, used as by
+                            :meth:`getThumbnailSet`. Cached thumbnails are
+                            passed to the callback before any request.
+        :param failed:      Optional dict, filled with {imageId: exception}
+                            for images whose request failed. If None, the
+                            first failure is raised once every request has
+                            been tried
+        :return:            dictionary of strings holding a rendered JPEG
+                            of the thumbnails, by image id.
+        """
+        ctx = self.SERVICE_OPTS.copy()
+        if ctx.getOmeroGroup() is None:
+            ctx.setOmeroGroup(-1)
+        rv = dict()
+        if cache is None:
+            pixels = self._getThumbnailPixelsIds(image_ids, ctx)
+        else:
+            versions = self._getThumbnailVersions(image_ids, ctx)
+            pixels = dict()
+            for pix, (img, version) in versions.items():
+                thumb = cache.get(pix, max_size, version)
+                if thumb is None:
+                    pixels[pix] = img
+                else:
+                    rv[img] = thumb
+                    if callback is not None:
+                        callback(img, thumb)
+            images = dict((img, pix) for pix, img in pixels.items())
+            userCallback = callback
+
+            def callback(img, thumb):
+                pix = images[img]
+                cache.put(pix, max_size, versions[pix][1], thumb)
+                if userCallback is not None:
+                    userCallback(img, thumb)
+        if not pixels:
+            return rv
+        p = omero.sys.ParametersI().addIds(list(pixels))
+        p.add('size', rint(max_size))
+        stored = self.getQueryService().projection(
+            "select distinct t.pixels.id from Thumbnail t "
+            "where t.pixels.id in (:ids) "
+            "and (t.sizeX = :size or t.sizeY = :size)", p, ctx)
+        stored = set(unwrap(x[0]) for x in stored) & set(pixels)
+        batches = []
+        if stored:
+            batches.append((ctx, dict((x, pixels[x]) for x in stored)))
+        missing = [x for x in pixels if x not in stored]
+        for i in range(0, len(missing), max(1, chunkSize)):
+            batches.append((ctx, dict(
+                (x, pixels[x]) for x in missing[i:i + chunkSize])))
+        rv.update(self._loadThumbnailBatches(batches, max_size, workers,
+                                             callback, failed))
+        return rv
+
 
 class OmeroGatewaySafeCallWrapper(object):  # pragma: no cover
     """
@@ -4944,6 +5233,300 @@ class ProxyObjectWrapper (object):
         return rv
 
 
+class _PooledRenderingEngine (ProxyObjectWrapper):
+    """
+    Rendering engine service wrapper handed out by
+    :class:`RenderingEnginePool`. Remembers the rendering def it was loaded
+    with and whether any call since may have changed its settings.
+    """
+
+    # Prefixes of calls which change the state of the engine, also when
+    # made asynchronously with begin_
+    MODIFIERS = ('set', 'add', 'remove', 'reset', 'update', 'save', 'load',
+                 'lookup')
+    # Changes which are made before every render anyway
+    TRANSIENT = ('setCompressionLevel',)
+
+    def __init__(self, conn):
+        """
+        Initialisation of the pooled rendering engine wrapper.
+
+        :param conn:    The :class:`BlitzGateway` connection
+        """
+        super(_PooledRenderingEngine, self).__init__(
+            conn, 'createRenderingEngine')
+        self.poolKey = None
+        self.rdefId = None
+        self.updateEventId = None
+        self.lastUsed = 0
+        self.modified = False
+
+    def __getattr__(self, attr):
+        """
+        Flags the engine as modified before returning any method which may
+        change its settings. See :meth:`ProxyObjectWrapper.__getattr__`
+        """
+        name = attr
+        if name.startswith('begin_'):
+            name = name[len('begin_'):]
+        if name.startswith(self.MODIFIERS) and name not in self.TRANSIENT:
+            self.modified = True
+        return super(_PooledRenderingEngine, self).__getattr__(attr)
+
+
+class RenderingEnginePool (object):
+    """
+    Keeps rendering engines which have already looked up their pixels and
+    loaded their rendering def, so that rendering an image again does not
+    pay for creating and loading a new engine each time.
+
+    Idle engines are keyed by (group ID, pixels ID, rendering def ID) and are
+    evicted least recently used first once more than maxSize are held, or
+    once not used for idleTimeout seconds. An engine handed back with
+    changed settings, or whose rendering def has been saved since it was
+    loaded, has its settings reloaded before it is handed out again. For
+    the default lookup (no rendering def ID), the rendering def is also
+    looked up again once the current user has saved one of their own.
+
+    Enabled with :meth:`BlitzGateway.enableRenderingEnginePool`.
+    """
+
+    def __init__(self, conn, maxSize=8, idleTimeout=600):
+        """
+        Initialisation of the pool.
+
+        :param conn:            The :class:`BlitzGateway` connection
+        :param maxSize:         Maximum number of idle engines kept
+        :type maxSize:          Int
+        :param idleTimeout:     Seconds after which an idle engine is closed
+        :type idleTimeout:      Number
+        """
+        self._conn = conn
+        self.maxSize = maxSize
+        self.idleTimeout = idleTimeout
+        self._lock = threading.RLock()
+        # key -> list of idle engines, least recently used key first
+        self._idle = OrderedDict()
+        self._closed = False
+        self.hits = 0
+        self.misses = 0
+        self.reloads = 0
+        self.evictions = 0
+
+    def __len__(self):
+        with self._lock:
+            return sum(len(x) for x in self._idle.values())
+
+    def createEngine(self):
+        """
+        Creates a new rendering engine which can be handed back to the pool
+        once it has been loaded, see :meth:`register`.
+
+        :return:    Rendering engine service wrapper
+        :rtype:     :class:`_PooledRenderingEngine`
+        """
+        return _PooledRenderingEngine(self._conn)
+
+    def _getUpdateEventId(self, rdefId, ctx):
+        params = omero.sys.ParametersI()
+        params.addId(rdefId)
+        rv = self._conn.getQueryService().projection(
+            "select r.details.updateEvent.id from RenderingDef r "
+            "where r.id = :id", params, ctx)
+        return rv and unwrap(rv[0][0]) or None
+
+    def _getOwnRenderingDefId(self, pixelsId, ctx):
+        params = omero.sys.ParametersI()
+        params.addLong('pid', pixelsId)
+        params.addLong('uid', self._conn.getUserId())
+        rv = self._conn.getQueryService().projection(
+            "select r.id from RenderingDef r where r.pixels.id = :pid "
+            "and r.details.owner.id = :uid", params, ctx)
+        return rv and unwrap(rv[0][0]) or None
+
+    def register(self, re, pixelsId, groupId, rdid, ctx):
+        """
+        Records the key and rendering def of an engine created with
+        :meth:`createEngine` and loaded by the caller, so that it is kept
+        once released.
+
+        :param re:          The loaded rendering engine
+        :param pixelsId:    Pixels ID the engine was loaded with
+        :param groupId:     Group ID of the pixels
+        :param rdid:        Rendering def ID asked for, or None for the
+                            default lookup
+        :param ctx:         Call context, with the group set
+        """
+        re.rdefId = re.getRenderingDefId(ctx)
+        re.updateEventId = self._getUpdateEventId(re.rdefId, ctx)
+        re.poolKey = (groupId, pixelsId, rdid)
+        re.modified = False
+
+    def acquire(self, pixelsId, groupId, rdid, ctx):
+        """
+        Returns an idle engine for the key, reloading its settings if
+        needed, or None if there is no usable one.
+
+        :param pixelsId:    Pixels ID
+        :param groupId:     Group ID of the pixels
+        :param rdid:        Rendering def ID asked for, or None for the
+                            default lookup
+        :param ctx:         Call context, with the group set
+        :return:            Rendering engine or None
+        """
+        key = (groupId, pixelsId, rdid)
+        re = None
+        with self._lock:
+            evicted = self._evict()
+            engines = self._idle.get(key)
+            if engines:
+                re = engines.pop()
+                if not engines:
+                    del self._idle[key]
+            else:
+                self.misses += 1
+        for e in evicted:
+            self._close(e)
+        if re is None:
+            return None
+        try:
+            eventId = self._getUpdateEventId(re.rdefId, ctx)
+            stale = re.modified or eventId != re.updateEventId
+            if rdid is None and not stale:
+                # The default lookup prefers the user's own settings
+                ownId = self._getOwnRenderingDefId(pixelsId, ctx)
+                stale = ownId is not None and ownId != re.rdefId
+            if stale:
+                logger.debug("Reloading rendering def %s for pixels %s" %
+                             (re.rdefId, pixelsId))
+                if rdid is None:
+                    if not re.lookupRenderingDef(pixelsId, ctx):
+                        raise omero.ClientError(
+                            "No rendering def for pixels %s" % pixelsId)
+                    re.rdefId = re.getRenderingDefId(ctx)
+                    eventId = self._getUpdateEventId(re.rdefId, ctx)
+                else:
+                    re.loadRenderingDef(re.rdefId, ctx)
+                re.load(ctx)
+                re.updateEventId = eventId
+                re.modified = False
+                with self._lock:
+                    self.reloads += 1
+        except Exception:
+            logger.debug("Discarding pooled rendering engine", exc_info=True)
+            self._close(re)
+            with self._lock:
+                self.misses += 1
+            return None
+        with self._lock:
+            self.hits += 1
+        return re
+
+    def release(self, re):
+        """
+        Hands an engine back to the pool. Engines which were not registered
+        with the pool, or released after the pool was closed, are closed.
+
+        :param re:          The rendering engine
+        """
+        if getattr(re, 'poolKey', None) is None:
+            self._close(re)
+            return
+        with self._lock:
+            if not self._closed:
+                re.lastUsed = time.time()
+                self._idle.setdefault(re.poolKey, []).append(re)
+                self._idle[re.poolKey] = self._idle.pop(re.poolKey)
+                re = None
+            evicted = self._evict()
+        if re is not None:
+            self._close(re)
+        for e in evicted:
+            self._close(e)
+
+    def _evict(self):
+        """
+        Removes expired engines, then least recently used ones beyond
+        maxSize. Must be called with the lock held.
+
+        :return:    List of the removed engines, still to be closed
+        """
+        evicted = []
+        cutoff = time.time() - self.idleTimeout
+        for key in self._idle.keys():
+            engines = self._idle[key]
+            while engines and engines[0].lastUsed < cutoff:
+                evicted.append(engines.pop(0))
+            if not engines:
+                del self._idle[key]
+        size = sum(len(x) for x in self._idle.values())
+        while size > self.maxSize:
+            key = next(iter(self._idle))
+            engines = self._idle[key]
+            evicted.append(engines.pop(0))
+            if not engines:
+                del self._idle[key]
+            size -= 1
+        self.evictions += len(evicted)
+        if evicted:
+            # Closed by the caller, outside of the lock
+            logger.debug("Evicting %d rendering engines" % len(evicted))
+        return evicted
+
+    def keepAlive(self):
+        """
+        Keeps the idle engines alive with a single keepAllAlive call,
+        dropping those which no longer exist on the server.
+
+        :return:    True if all idle engines are still alive
+        :rtype:     Boolean
+        """
+        with self._lock:
+            evicted = self._evict()
+            engines = [re for x in self._idle.values() for re in x]
+        for e in evicted:
+            self._close(e)
+        engines = [re for re in engines if re._obj is not None]
+        if not engines:
+            return True
+        try:
+            missing = self._conn.c.sf.keepAllAlive(
+                [re._obj for re in engines])
+        except Exception:
+            logger.debug("keepAllAlive failed", exc_info=True)
+            return False
+        dead = [re for i, re in enumerate(engines) if missing & (1 << i)]
+        if dead:
+            with self._lock:
+                for re in dead:
+                    idle = self._idle.get(re.poolKey, [])
+                    if re in idle:
+                        idle.remove(re)
+                        if not idle:
+                            del self._idle[re.poolKey]
+            for re in dead:
+                self._conn._unregister_service(str(re._obj))
+                re._obj = None
+        return not dead
+
+    def _close(self, re):
+        try:
+            re.close()
+        except Exception:
+            logger.debug("Failed to close rendering engine", exc_info=True)
+
+    def close(self):
+        """
+        Closes all idle engines. Engines in use are closed when released.
+        """
+        with self._lock:
+            self._closed = True
+            engines = [re for x in self._idle.values() for re in x]
+            self._idle.clear()
+        for re in engines:
+            self._close(re)
+
+
 class AnnotationWrapper (BlitzObjectWrapper):
     """
     omero_model_AnnotationI class wrapper extends BlitzObjectWrapper.
@@ -7181,6 +7764,100 @@ class _PlaneInfoWrapper (BlitzObjectWrapper):
 PlaneInfoWrapper = _PlaneInfoWrapper
 
 
+def _coalesceTiles(zctTileList, maxWidth, maxHeight):
+    """
+    Groups runs of consecutive tiles from the same plane into a single
+    bounding region so that they can be fetched with one getTile() call.
+    A tile is only added to the current region if the enlarged region
+    still fits within maxWidth x maxHeight and contains no pixels which
+    were not requested. Since this is checked by adding up the areas of
+    the tiles, a tile which overlaps one already in the region starts a
+    new region. Whole planes (tile None) are never merged.
+
+    :param zctTileList: A list of indexes: [(z,c,t, region), ]
+    :return:            A list of ((z,c,t, region), [tile, ]) where each
+                        tile lies within region
+    """
+    fetches = []
+    area = 0
+    for z, c, t, tile in zctTileList:
+        if tile is not None:
+            tile = tuple(tile)
+        if fetches and tile is not None:
+            (fz, fc, ft, region), tiles = fetches[-1]
+            if (fz, fc, ft) == (z, c, t) and region is not None:
+                x1 = min(region[0], tile[0])
+                y1 = min(region[1], tile[1])
+                x2 = max(region[0] + region[2], tile[0] + tile[2])
+                y2 = max(region[1] + region[3], tile[1] + tile[3])
+                overlaps = [x for x in tiles
+                            if x[0] < tile[0] + tile[2] and
+                            tile[0] < x[0] + x[2] and
+                            x[1] < tile[1] + tile[3] and
+                            tile[1] < x[1] + x[3]]
+                if (not overlaps and
+                        x2 - x1 <= maxWidth and y2 - y1 <= maxHeight and
+                        (x2 - x1) * (y2 - y1) <= area + tile[2] * tile[3]):
+                    area += tile[2] * tile[3]
+                    tiles.append(tile)
+                    fetches[-1] = ((z, c, t, (x1, y1, x2 - x1, y2 - y1)),
+                                   tiles)
+                    continue
+        area = 0
+        if tile is not None:
+            area = tile[2] * tile[3]
+        fetches.append(((z, c, t, tile), [tile]))
+    return fetches
+
+
+def _splitHypercube(offset, size, step, bytesPerPixel, maxBytes):
+    """
+    Splits a getHypercube() request into consecutive requests of at most
+    maxBytes each (or of a single pixel if even that is larger), such that
+    concatenating the results in order gives the result of the whole
+    request. Dimensions are in XYZCT order, X varying fastest.
+
+    :return:    Generator of (offset, size) lists, one per request
+    """
+    ndims = len(offset)
+    counts = [(size[d] + step[d] - 1) // step[d] for d in range(ndims)]
+    # Find the fastest dimension whose whole extent does not fit; chunks
+    # are then runs along it of slabs covering all faster dimensions
+    slab = 1
+    dim = 0
+    while (dim < ndims - 1 and
+           slab * counts[dim] * bytesPerPixel <= maxBytes):
+        slab *= counts[dim]
+        dim += 1
+    perChunk = max(1, maxBytes // (slab * bytesPerPixel))
+
+    # Iterate over every index of the dimensions slower than dim,
+    # and over dim itself in runs of perChunk
+    outer = [0] * ndims
+    while True:
+        start = 0
+        while start < counts[dim]:
+            n = min(perChunk, counts[dim] - start)
+            chunkOffset = list(offset)
+            chunkSize = list(size)
+            for d in range(dim + 1, ndims):
+                chunkOffset[d] = offset[d] + outer[d] * step[d]
+                chunkSize[d] = 1
+            chunkOffset[dim] = offset[dim] + start * step[dim]
+            chunkSize[dim] = (n - 1) * step[dim] + 1
+            yield chunkOffset, chunkSize
+            start += n
+        d = dim + 1
+        while d < ndims:
+            outer[d] += 1
+            if outer[d] < counts[d]:
+                break
+            outer[d] = 0
+            d += 1
+        if d == ndims:
+            return
+
+
 class _PixelsWrapper (BlitzObjectWrapper):
     """
     omero_model_PixelsI class wrapper extends BlitzObjectWrapper.
@@ -7245,102 +7922,438 @@ class _PixelsWrapper (BlitzObjectWrapper):
         for pi in result:
             yield PlaneInfoWrapper(self._conn, pi)
 
-    def getPlanes(self, zctList):
+    def getPlanes(self, zctList, readAhead=0, cache=None):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of Z, C, T indexes.
 
         :param zctList:     A list of indexes: [(z,c,t), ]
+        :param readAhead:   See :meth:`getTiles`
+        :param cache:       See :meth:`getTiles`
         """
 
         zctTileList = []
         for zct in zctList:
             z, c, t = zct
             zctTileList.append((z, c, t, None))
-        return self.getTiles(zctTileList)
+        return self.getTiles(zctTileList, readAhead=readAhead, cache=cache)
 
-    def getPlane(self, theZ=0, theC=0, theT=0):
+    def getPlane(self, theZ=0, theC=0, theT=0, cache=None):
         """
         Gets the specified plane as a 2D numpy array by calling
         :meth:`getPlanes`
         If a range of planes are required, :meth:`getPlanes` is approximately
         30% faster.
         """
-        planeList = list(self.getPlanes([(theZ, theC, theT)]))
+        planeList = list(self.getPlanes([(theZ, theC, theT)], cache=cache))
         return planeList[0]
 
-    def getTiles(self, zctTileList):
+    def getTiles(self, zctTileList, readAhead=0, cache=None,
+                 coalesce=False, copy=True):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of (Z, C, T, tile) where tile is (x, y, width, height) or None if
         you want the whole plane.
 
+        Since the order of the list is known up front, up to readAhead
+        further planes or tiles are requested asynchronously while the
+        current one is being converted, so that consecutive requests do not
+        each wait for a full round-trip to the server.
+
         :param zctrList:     A list of indexes: [(z,c,t, region), ]
+        :param readAhead:   Number of requests to keep in flight ahead of
+                            the one being yielded. 0 fetches one at a time.
+        :param cache:       Optional :class:`omero.gateway.utils.PlaneCache`
+                            which is consulted before and populated after
+                            each fetch.
+        :param coalesce:    If True, runs of adjacent tiles from the same
+                            plane are fetched as one region (up to the
+                            server's maximum plane size) and sliced on the
+                            client, see :func:`_coalesceTiles`. The yielded
+                            arrays are then views onto that region.
+        :param copy:        If True (the default) each array is copied into
+                            native byte order. If False, read-only views in
+                            the server's big-endian order are yielded
+                            directly over the received bytes without any
+                            copy; use ``astype()`` to copy when needed.
         """
 
         import numpy
-        from struct import unpack
-
-        pixelTypes = {PixelsTypeint8: ['b', numpy.int8],
-                      PixelsTypeuint8: ['B', numpy.uint8],
-                      PixelsTypeint16: ['h', numpy.int16],
-                      PixelsTypeuint16: ['H', numpy.uint16],
-                      PixelsTypeint32: ['i', numpy.int32],
-                      PixelsTypeuint32: ['I', numpy.uint32],
-                      PixelsTypefloat: ['f', numpy.float32],
-                      PixelsTypedouble: ['d', numpy.float64]}
+
+        pixelTypes = {PixelsTypeint8: numpy.int8,
+                      PixelsTypeuint8: numpy.uint8,
+                      PixelsTypeint16: numpy.int16,
+                      PixelsTypeuint16: numpy.uint16,
+                      PixelsTypeint32: numpy.int32,
+                      PixelsTypeuint32: numpy.uint32,
+                      PixelsTypefloat: numpy.float32,
+                      PixelsTypedouble: numpy.float64}
         rawPixelsStore = None
         sizeX = self.sizeX
         sizeY = self.sizeY
         pixelType = self.getPixelsType().value
-        numpyType = pixelTypes[pixelType][1]
-        exc = None
+        numpyType = pixelTypes[pixelType]
+        wireType = numpy.dtype(numpyType).newbyteorder('>')
+        pixelsId = self.getId()
+        if coalesce:
+            maxWidth, maxHeight = self._conn.getMaxPlaneSize()
+            fetches = _coalesceTiles(zctTileList, maxWidth, maxHeight)
+        else:
+            fetches = []
+            for z, c, t, tile in zctTileList:
+                if tile is not None:
+                    tile = tuple(tile)
+                fetches.append(((z, c, t, tile), [tile]))
+        pending = deque()
+        completed = False
+
+        def request(zctTile):
+            """
+            Returns (key, rawPlane, end, result) where rawPlane is set
+            on a cache hit and end(result) completes the pending call
+            otherwise.
+            """
+            z, c, t, tile = zctTile
+            key = (pixelsId, z, c, t, tile)
+            if cache is not None:
+                rawPlane = cache.get(key)
+                if rawPlane is not None:
+                    return key, rawPlane, None, None
+            if tile is None:
+                return (key, None, rawPixelsStore.end_getPlane,
+                        rawPixelsStore.begin_getPlane(z, c, t))
+            x, y, width, height = tile
+            return (key, None, rawPixelsStore.end_getTile,
+                    rawPixelsStore.begin_getTile(
+                        z, c, t, x, y, width, height))
+
         try:
             rawPixelsStore = self._prepareRawPixelsStore()
-            for zctTile in zctTileList:
-                z, c, t, tile = zctTile
-                if tile is None:
-                    rawPlane = rawPixelsStore.getPlane(z, c, t)
+            nextIndex = 0
+            while nextIndex < len(fetches) or pending:
+                while (nextIndex < len(fetches) and
+                       len(pending) <= readAhead):
+                    zctTile, tiles = fetches[nextIndex]
+                    pending.append((request(zctTile), tiles))
+                    nextIndex += 1
+                (key, rawPlane, end, result), tiles = pending.popleft()
+                if rawPlane is None:
+                    rawPlane = end(result)
+                    if cache is not None:
+                        cache.put(key, rawPlane)
+                region = key[4]
+                if region is None:
                     planeY = sizeY
                     planeX = sizeX
                 else:
-                    x, y, width, height = tile
-                    rawPlane = rawPixelsStore.getTile(
-                        z, c, t, x, y, width, height)
-                    planeY = height
-                    planeX = width
-                # +str(sizeX*sizeY)+pythonTypes[pixelType]
-                convertType = '>%d%s' % (
-                    (planeY*planeX), pixelTypes[pixelType][0])
-                convertedPlane = unpack(convertType, rawPlane)
-                remappedPlane = numpy.array(convertedPlane, numpyType)
-                remappedPlane.resize(planeY, planeX)
-                yield remappedPlane
-        except Exception, e:
+                    planeY = region[3]
+                    planeX = region[2]
+                remappedPlane = numpy.frombuffer(
+                    rawPlane, dtype=wireType, count=planeY*planeX)
+                remappedPlane = remappedPlane.reshape(planeY, planeX)
+                if copy:
+                    remappedPlane = remappedPlane.astype(numpyType)
+                for tile in tiles:
+                    if tile == region:
+                        yield remappedPlane
+                    else:
+                        x = tile[0] - region[0]
+                        y = tile[1] - region[1]
+                        yield remappedPlane[y:y + tile[3], x:x + tile[2]]
+            completed = True
+        except Exception:
             logger.error(
                 "Failed to getPlane() or getTile() from rawPixelsStore",
                 exc_info=True)
-            exc = e
-        try:
-            if rawPixelsStore is not None:
-                rawPixelsStore.close()
-        except Exception, e:
-            logger.error("Failed to close rawPixelsStore", exc_info=True)
-            if exc is None:
-                exc = e
-        if exc is not None:
-            raise exc
+            raise
+        finally:
+            # Also reached when the caller stops iterating early: collect
+            # the read-ahead calls still in flight before closing
+            for (key, rawPlane, end, result), tiles in pending:
+                if end is not None:
+                    try:
+                        end(result)
+                    except Exception:
+                        pass
+            try:
+                if rawPixelsStore is not None:
+                    rawPixelsStore.close()
+            except Exception:
+                logger.error("Failed to close rawPixelsStore", exc_info=True)
+                if completed:
+                    raise
 
-    def getTile(self, theZ=0, theC=0, theT=0, tile=None):
+    def getTile(self, theZ=0, theC=0, theT=0, tile=None, cache=None):
         """
         Gets the specified plane as a 2D numpy array by calling
         :meth:`getTiles`
         If a range of tile are required, :meth:`getTiles` is approximately 30%
         faster.
         """
-        tileList = list(self.getTiles([(theZ, theC, theT, tile)]))
+        tileList = list(self.getTiles([(theZ, theC, theT, tile)],
+                                      cache=cache))
         return tileList[0]
 
+    def getHypercubes(self, offset, size, step=None, maxBytes=None,
+                      readAhead=1):
+        """
+        Returns a generator of the raw bytes of a hypercube as returned by
+        RawPixelsStore.getHypercube(), split into requests of at most
+        maxBytes so that neither the Ice message size limit nor the
+        client's memory bounds the size of the cube which can be read.
+        Concatenating the yielded chunks gives the whole hypercube.
+        At most readAhead + 1 chunks are held at any one time.
+
+        :param offset:      Offsets in XYZCT order
+        :param size:        Sizes in XYZCT order
+        :param step:        Steps in XYZCT order. Defaults to 1 in each
+        :param maxBytes:    Maximum size of each request. Defaults to the
+                            client's block size (omero.block_size)
+        :param readAhead:   Number of requests to keep in flight ahead of
+                            the chunk being yielded
+        :return:            Generator of (offset, size, bytes) tuples
+        """
+        if step is None:
+            step = [1] * len(offset)
+        if maxBytes is None:
+            maxBytes = self._conn.c.getDefaultBlockSize()
+        bytesPerPixel = self.getPixelsType().getBitSize() // 8
+        chunks = _splitHypercube(offset, size, step, bytesPerPixel, maxBytes)
+        rawPixelsStore = None
+        pending = deque()
+        completed = False
+        try:
+            rawPixelsStore = self._prepareRawPixelsStore()
+            for chunkOffset, chunkSize in chunks:
+                pending.append((chunkOffset, chunkSize,
+                                rawPixelsStore.begin_getHypercube(
+                                    chunkOffset, chunkSize, step)))
+                if len(pending) > readAhead:
+                    chunkOffset, chunkSize, result = pending.popleft()
+                    yield (chunkOffset, chunkSize,
+                           rawPixelsStore.end_getHypercube(result))
+            while pending:
+                chunkOffset, chunkSize, result = pending.popleft()
+                yield (chunkOffset, chunkSize,
+                       rawPixelsStore.end_getHypercube(result))
+            completed = True
+        except Exception:
+            logger.error(
+                "Failed to getHypercube() from rawPixelsStore", exc_info=True)
+            raise
+        finally:
+            # Also reached when the caller stops iterating early
+            for chunkOffset, chunkSize, result in pending:
+                try:
+                    rawPixelsStore.end_getHypercube(result)
+                except Exception:
+                    pass
+            try:
+                if rawPixelsStore is not None:
+                    rawPixelsStore.close()
+            except Exception:
+                logger.error("Failed to close rawPixelsStore", exc_info=True)
+                if completed:
+                    raise
+
+    def saveRawPixels(self, filename, workers=4, maxBytes=None):
+        """
+        Downloads all of the pixel data to a local file, laid out as the
+        server's pixel buffer is: big-endian values in XYZCT order.
+
+        The (C, T) stacks are shared out between a number of worker
+        threads, each with its own RawPixelsStore on this session, which
+        write directly into a memory-mapped file, so that transfers are
+        not serialized on a single stateful service. Stacks larger than
+        maxBytes are fetched plane by plane instead.
+
+        :param filename:    Path of the file to write. It is truncated to
+                            the size of the pixel data.
+        :param workers:     Number of RawPixelsStore instances to use
+        :param maxBytes:    Largest stack to fetch in one call. Defaults to
+                            the client's block size (omero.block_size)
+        :return:            The number of bytes written
+        """
+        import mmap
+        from Queue import Queue, Empty
+
+        sizeX = self.sizeX
+        sizeY = self.sizeY
+        sizeZ = self.sizeZ
+        sizeC = self.sizeC
+        sizeT = self.sizeT
+        planeBytes = sizeX * sizeY * (self.getPixelsType().getBitSize() // 8)
+        total = planeBytes * sizeZ * sizeC * sizeT
+        if total == 0:
+            # Nothing to map, which mmap would reject
+            open(filename, "wb").close()
+            return 0
+        if maxBytes is None:
+            maxBytes = self._conn.c.getDefaultBlockSize()
+        work = Queue()
+        for t in range(sizeT):
+            for c in range(sizeC):
+                if planeBytes * sizeZ <= maxBytes:
+                    work.put((None, c, t))
+                else:
+                    for z in range(sizeZ):
+                        work.put((z, c, t))
+        errors = []
+
+        with open(filename, "w+b") as f:
+            f.truncate(total)
+            buf = mmap.mmap(f.fileno(), total)
+            try:
+                def download():
+                    rps = None
+                    # Group context, so that images of other groups work
+                    ctx = self._conn.SERVICE_OPTS
+                    try:
+                        rps = self._conn.c.sf.createRawPixelsStore(ctx)
+                        rps.setPixelsId(self.getId(), True, ctx)
+                        while not errors:
+                            try:
+                                z, c, t = work.get_nowait()
+                            except Empty:
+                                break
+                            offset = (t * sizeC + c) * sizeZ * planeBytes
+                            if z is None:
+                                data = rps.getStack(c, t, ctx)
+                            else:
+                                data = rps.getPlane(z, c, t, ctx)
+                                offset += z * planeBytes
+                            buf[offset:offset + len(data)] = data
+                    except Exception, e:
+                        logger.error("Failed to download pixels %s",
+                                     self.getId(), exc_info=True)
+                        errors.append(e)
+                    finally:
+                        if rps is not None:
+                            rps.close()
+
+                threads = [threading.Thread(target=download)
+                           for i in range(max(1, workers))]
+                for thread in threads:
+                    thread.start()
+                for thread in threads:
+                    thread.join()
+                buf.flush()
+            finally:
+                buf.close()
+        if errors:
+            raise errors[0]
+        return total
+
+    def projectStacks(self, algorithm='intmax', zStart=None, zEnd=None,
+                      stepping=1, channels=None, timepoints=None, workers=4,
+                      readAhead=2):
+        """
+        Projects Z stacks on the client, returning a dict of
+        {(c, t): 2D numpy array} for every channel and timepoint asked for,
+        with the same algorithms as the projection service.
+
+        The (C, T) stacks are shared out between worker threads, each with
+        its own RawPixelsStore, which request up to readAhead Z planes
+        ahead of the one being accumulated. Maximum intensity is kept in
+        the pixels type; mean and sum are accumulated as float64, so that
+        sums do not overflow.
+
+        :param algorithm:   'intmax', 'intmean' or 'intsum', as the keys
+                            of :attr:`ImageWrapper.PROJECTIONS`
+        :param zStart:      First Z section. Defaults to 0
+        :param zEnd:        Last Z section, inclusive. Defaults to sizeZ-1
+        :param stepping:    Project every n-th section from zStart
+        :param channels:    Channel indexes. Defaults to all
+        :param timepoints:  T indexes. Defaults to all
+        :param workers:     Number of RawPixelsStore instances to use
+        :param readAhead:   Number of planes to keep in flight per worker
+        :return:            Dict of projected planes
+        """
+        import numpy
+        from Queue import Queue, Empty
+        from omero.util.pixelstypetopython import toNumpy
+
+        if algorithm not in ('intmax', 'intmean', 'intsum'):
+            raise ValueError("Unknown projection: %s" % algorithm)
+        if zStart is None:
+            zStart = 0
+        if zEnd is None:
+            zEnd = self.sizeZ - 1
+        if not 0 <= zStart <= zEnd < self.sizeZ:
+            raise ValueError("Invalid Z range %s-%s for sizeZ %s"
+                             % (zStart, zEnd, self.sizeZ))
+        zs = range(zStart, zEnd + 1, max(1, stepping))
+        if channels is None:
+            channels = range(self.sizeC)
+        if timepoints is None:
+            timepoints = range(self.sizeT)
+        numpyType = toNumpy(self.getPixelsType().value)
+        wireType = numpy.dtype(numpyType).newbyteorder('>')
+        shape = (self.sizeY, self.sizeX)
+        work = Queue()
+        for t in timepoints:
+            for c in channels:
+                work.put((c, t))
+        rv = {}
+        errors = []
+
+        # Group context, so that images of other groups work
+        ctx = self._conn.SERVICE_OPTS
+
+        def project(rps, c, t):
+            pending = deque()
+            acc = None
+            i = 0
+            while i < len(zs) or pending:
+                while i < len(zs) and len(pending) <= readAhead:
+                    pending.append(rps.begin_getPlane(
+                        zs[i], c, t, _ctx=ctx))
+                    i += 1
+                plane = numpy.frombuffer(
+                    rps.end_getPlane(pending.popleft()),
+                    dtype=wireType).reshape(shape)
+                if algorithm == 'intmax':
+                    if acc is None:
+                        acc = plane.astype(numpyType)
+                    else:
+                        numpy.maximum(acc, plane, out=acc)
+                else:
+                    if acc is None:
+                        acc = numpy.zeros(shape, dtype=numpy.float64)
+                    acc += plane
+            if algorithm == 'intmean':
+                acc /= len(zs)
+            return acc
+
+        def worker():
+            rps = None
+            try:
+                rps = self._conn.c.sf.createRawPixelsStore(ctx)
+                rps.setPixelsId(self.getId(), True, ctx)
+                while not errors:
+                    try:
+                        c, t = work.get_nowait()
+                    except Empty:
+                        break
+                    rv[(c, t)] = project(rps, c, t)
+            except Exception, e:
+                logger.error("Failed to project pixels %s", self.getId(),
+                             exc_info=True)
+                errors.append(e)
+            finally:
+                if rps is not None:
+                    rps.close()
+
+        threads = [threading.Thread(target=worker)
+                   for i in range(max(1, min(workers, work.qsize())))]
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join()
+        if errors:
+            raise errors[0]
+        return rv
+
 PixelsWrapper = _PixelsWrapper
 
 
@@ -7950,23 +8963,40 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         """
 
         pid = self.getPrimaryPixels().id
-        re = self._conn.createRenderingEngine()
         ctx = self._conn.SERVICE_OPTS.copy()
 
         ctx.setOmeroGroup(self.details.group.id.val)
         # if self._conn.canBeAdmin():
         #     ctx.setOmeroUser(self.details.owner.id.val)
-        re.lookupPixels(pid, ctx)
         if rdid is None:
             rdid = self._getRDef()
-        if rdid is None:
-            if not re.lookupRenderingDef(pid, ctx):
-                re.resetDefaultSettings(True, ctx)
-                re.lookupRenderingDef(pid, ctx)
-            self._onResetDefaults(re.getRenderingDefId(ctx))
+        pool = self._conn.getRenderingEnginePool()
+        if pool is None:
+            re = self._conn.createRenderingEngine()
         else:
-            re.loadRenderingDef(rdid, ctx)
-        re.load(ctx)
+            groupId = self.details.group.id.val
+            re = pool.acquire(pid, groupId, rdid, ctx)
+            if re is not None:
+                if rdid is None:
+                    self._onResetDefaults(re.rdefId)
+                return re
+            re = pool.createEngine()
+        try:
+            re.lookupPixels(pid, ctx)
+            if rdid is None:
+                if not re.lookupRenderingDef(pid, ctx):
+                    re.resetDefaultSettings(True, ctx)
+                    re.lookupRenderingDef(pid, ctx)
+                self._onResetDefaults(re.getRenderingDefId(ctx))
+            else:
+                re.loadRenderingDef(rdid, ctx)
+            re.load(ctx)
+            if pool is not None:
+                pool.register(re, pid, groupId, rdid, ctx)
+        except:
+            if pool is not None:
+                re.close()
+            raise
         return re
 
     def _prepareRenderingEngine(self, rdid=None):
@@ -8744,6 +9774,81 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         finally:
             rp.close()
 
+    def getStackHistogram(self, channels, binCount, zRange=None,
+                          tRange=None, region=None, readAhead=4):
+        """
+        Get the pixel intensity histogram for specified channels summed over
+        a range of Z sections and timepoints, optionally restricted to a
+        region of each plane.
+
+        Bins always span the min/max of each channel over ALL planes (as
+        with globalRange=True in :meth:`getHistogram`) so that the plane
+        histograms can be added together. Up to readAhead + 1 plane
+        requests are kept in flight on the one RawPixelsStore, so that a
+        whole stack does not cost one round-trip per plane.
+
+        :param channels:        List of channel integers we want
+        :param binCount:        Number of bins in the histogram
+        :param zRange:          Tuple of (start, end) Z indexes, inclusive.
+                                Defaults to all Z sections.
+        :param tRange:          Tuple of (start, end) T indexes, inclusive.
+                                Defaults to all timepoints.
+        :param region:          Tuple of (x, y, width, height) or None for
+                                the whole plane
+        :param readAhead:       Number of requests to keep in flight ahead
+                                of the one being merged
+        :return:                Dict of channelIndex: integer list
+        """
+
+        if zRange is None:
+            zRange = (0, self.getSizeZ() - 1)
+        if tRange is None:
+            tRange = (0, self.getSizeT() - 1)
+        regionDef = None
+        if region is not None:
+            regionDef = omero.romio.RegionDef()
+            regionDef.x, regionDef.y, regionDef.width, regionDef.height = \
+                [int(v) for v in region]
+
+        pixels_id = self.getPixelsId()
+        rp = self._conn.createRawPixelsStore()
+        histogram = dict()
+        try:
+            rp.setPixelsId(pixels_id, True, self._conn.SERVICE_OPTS)
+            pending = deque()
+            for theT in range(tRange[0], tRange[1] + 1):
+                for theZ in range(zRange[0], zRange[1] + 1):
+                    plane = omero.romio.PlaneDef(self.PLANEDEF)
+                    plane.z = long(theZ)
+                    plane.t = long(theT)
+                    plane.region = regionDef
+                    pending.append(rp.begin_getHistogram(
+                        channels, binCount, True, plane,
+                        _ctx=self._conn.SERVICE_OPTS))
+                    while len(pending) > readAhead:
+                        self._mergeHistogram(
+                            histogram, rp.end_getHistogram(pending.popleft()))
+            while pending:
+                self._mergeHistogram(
+                    histogram, rp.end_getHistogram(pending.popleft()))
+            return histogram
+        finally:
+            rp.close()
+
+    @staticmethod
+    def _mergeHistogram(histogram, planeHistogram):
+        """
+        Adds the counts of planeHistogram into histogram, both being dicts
+        of channelIndex: integer list.
+        """
+        for channel, counts in planeHistogram.items():
+            total = histogram.get(channel)
+            if total is None:
+                histogram[channel] = list(counts)
+            else:
+                for i, count in enumerate(counts):
+                    total[i] += count
+
     def getPixelLine(self, z, t, pos, axis, channels=None, range=None):
         """
         Grab a horizontal or vertical line from the image pixel data, for the
@@ -8973,6 +10078,54 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         if self._re is not None:
             return self._re.getRenderingDefId()
 
+    @assert_re()
+    def getRenderingSettingsHash(self):
+        """
+        Returns a hash of the settings the rendering engine currently renders
+        with: rendering model, quantum def, default Z and T, and for each
+        channel whether it is active, its window, color, lookup table,
+        quantization family and codomain maps. The projection and inverted
+        axis set on this wrapper are included too.
+        Useful as part of a cache key for rendered planes, since it changes
+        whenever any of these change, saved or not. All values are requested
+        from the rendering engine at once, costing a single round-trip.
+
+        :return:    SHA-1 hex digest or None if the rendering engine could
+                    not be prepared
+        :rtype:     String
+        """
+
+        re = self._re
+        ctx = self._conn.SERVICE_OPTS
+        calls = [(re.end_getModel, re.begin_getModel(_ctx=ctx)),
+                 (re.end_getQuantumDef, re.begin_getQuantumDef(_ctx=ctx)),
+                 (re.end_getDefaultZ, re.begin_getDefaultZ(_ctx=ctx)),
+                 (re.end_getDefaultT, re.begin_getDefaultT(_ctx=ctx))]
+        for c in range(self.getSizeC()):
+            for name in ('isActive', 'getChannelWindowStart',
+                         'getChannelWindowEnd', 'getRGBA',
+                         'getChannelLookupTable', 'getChannelFamily',
+                         'getChannelCurveCoefficient',
+                         'getChannelNoiseReduction', 'getCodomainMapContext'):
+                calls.append((getattr(re, 'end_' + name),
+                              getattr(re, 'begin_' + name)(c, _ctx=ctx)))
+
+        def describe(v):
+            # Model objects are compared by their fields, not their identity
+            if isinstance(v, omero.model.IObject):
+                return (v.__class__.__name__, sorted(
+                    (k, describe(unwrap(x))) for k, x in v.__dict__.items()
+                    if k not in ('_id', '_details', '_version', '_loaded') and
+                    not isinstance(x, omero.model.IObject)))
+            if isinstance(v, (list, tuple)):
+                return [describe(x) for x in v]
+            return v
+
+        settings = [describe(end(result)) for end, result in calls]
+        settings.extend([self._pr, self._prStart, self._prEnd,
+                         self._invertedAxis])
+        return hashlib.sha1(repr(settings)).hexdigest()
+
     def getAllRenderingDefs(self, eid=-1):
         """
         Returns a dict of the rendering settings that exist for this Image
@@ -9081,7 +10234,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             f.seek(0)
             return f.read()
         finally:
-            re.close()
+            self._closeRE(re=re)
 
     @assert_re()
     def renderJpegRegion(self, z, t, x, y, width, height, level=None,
@@ -9118,7 +10271,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
                 except omero.SecurityViolation:  # pragma: no cover
                     self._obj.clearPixels()
                     self._obj.pixelsLoaded = False
-                    self._closeRE()
+                    self._closeRE(discard=True)
                     return self.renderJpeg(z, t, None)
             rv = self._re.renderCompressed(self._pd, self._conn.SERVICE_OPTS)
             return rv
@@ -9130,18 +10283,47 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             # as it hangs
             self._obj.clearPixels()
             self._obj.pixelsLoaded = False
-            self._closeRE()
+            self._closeRE(discard=True)
             raise
 
-    def _closeRE(self):
+    def _closeRE(self, discard=False, re=None):
+        """
+        Closes the rendering engine, or hands it back to the connection's
+        rendering engine pool if there is one.
+
+        :param discard:     If True, close the engine even when pooling,
+                            e.g. when it is in an unknown state
+        :type discard:      Boolean
+        :param re:          Another engine from :meth:`_prepareRE` to close
+                            rather than this wrapper's own one
+        """
+        own = re is None
+        if own:
+            re = self._re
         try:
-            if self._re is not None:
-                self._re.close()
+            if re is not None:
+                pool = self._conn.getRenderingEnginePool()
+                if pool is not None and not discard:
+                    pool.release(re)
+                else:
+                    re.close()
         except Exception, e:
-            logger.warn("Failed to close " + self._re)
+            logger.warn("Failed to close %s" % re)
             logger.debug(e)
         finally:
-            self._re = None  # This should be the ONLY location to null _re!
+            if own:
+                # This should be the ONLY location to null _re!
+                self._re = None
+
+    def releaseRenderingEngine(self):
+        """
+        Hands the rendering engine back to the connection's rendering
+        engine pool, see :meth:`BlitzGateway.enableRenderingEnginePool`,
+        or closes it if there is no pool. To be called once done rendering
+        this image, for instance at the end of a request; the next call
+        which needs an engine prepares one again.
+        """
+        self._closeRE()
 
     @assert_re()
     def renderJpeg(self, z=None, t=None, compression=0.9):
@@ -9170,7 +10352,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
                 except omero.SecurityViolation:  # pragma: no cover
                     self._obj.clearPixels()
                     self._obj.pixelsLoaded = False
-                    self._closeRE()
+                    self._closeRE(discard=True)
                     return self.renderJpeg(z, t, None)
             projection = self.PROJECTIONS.get(self._pr, -1)
             if not isinstance(
@@ -9196,9 +10378,150 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             # hangs
             self._obj.clearPixels()
             self._obj.pixelsLoaded = False
-            self._closeRE()
+            self._closeRE(discard=True)
             raise
 
+    @assert_re()
+    def renderJpegs(self, zts=None, compression=0.9, readAhead=4):
+        """
+        Renders a sequence of planes, e.g. for a movie or montage, returning
+        a generator of (z, t, jpeg data) in the order given. The rendering
+        engine is only prepared once and up to readAhead + 1 render calls
+        are kept in flight, so frames do not each cost a round-trip.
+
+        Projection (or not) is specified by calling :meth:`setProjection`
+        before renderJpegs, in which case the Z index is ignored and one
+        projected frame is rendered per T index: only the first of the
+        tuples with the same T is rendered.
+
+        :param zts:             List of (z, t) tuples. Defaults to every Z
+                                section at the default T, or to every T
+                                when projecting.
+        :param compression:     Compression level for jpeg
+        :type compression:      Float
+        :param readAhead:       Number of render calls to keep in flight
+                                ahead of the frame being yielded
+        """
+
+        projection = self.PROJECTIONS.get(self._pr, -1)
+        projected = isinstance(
+            projection, omero.constants.projection.ProjectionType)
+        prStart, prEnd = 0, self.getSizeZ()-1
+        if self._prStart is not None:
+            prStart = self._prStart
+        if self._prEnd is not None:
+            prEnd = self._prEnd
+        if zts is None:
+            if projected:
+                zts = [(prStart, t) for t in range(self.getSizeT())]
+            else:
+                t = self._re.getDefaultT()
+                zts = [(z, t) for z in range(self.getSizeZ())]
+        elif projected:
+            seen = set()
+            unique = []
+            for z, t in zts:
+                if t not in seen:
+                    seen.add(t)
+                    unique.append((z, t))
+            zts = unique
+        if compression is not None:
+            self._re.setCompressionLevel(float(compression))
+
+        def request(z, t):
+            if projected:
+                return self._re.end_renderProjectedCompressed, \
+                    self._re.begin_renderProjectedCompressed(
+                        projection, long(t), 1, prStart, prEnd,
+                        _ctx=self._conn.SERVICE_OPTS)
+            pd = omero.romio.PlaneDef(self.PLANEDEF)
+            pd.z = long(z)
+            pd.t = long(t)
+            pd.region = self._pd.region
+            return self._re.end_renderCompressed, \
+                self._re.begin_renderCompressed(
+                    pd, _ctx=self._conn.SERVICE_OPTS)
+
+        pending = deque()
+        for z, t in zts:
+            pending.append((z, t) + request(z, t))
+            while len(pending) > readAhead:
+                z, t, end, result = pending.popleft()
+                yield z, t, end(result)
+        while pending:
+            z, t, end, result = pending.popleft()
+            yield z, t, end(result)
+
+    @assert_re()
+    def renderProjectedJpegs(self, t=None, compression=0.9, steps=None,
+                             cache=None):
+        """
+        Renders the projection set with :meth:`setProjection` and
+        :meth:`setProjectionRange` progressively, returning a generator of
+        (stepping, jpeg data). A quick projection of every n-th Z section is
+        yielded first, then finer ones down to the full projection, so that
+        a viewer can show something while a big Z-stack is projected. All
+        renders are requested up front, one after the other.
+
+        If a cache is given, each result is stored under the pixels ID,
+        algorithm, Z range, stepping, T, compression and the rendering
+        settings hash (which covers the active channels and their
+        settings). If the full projection is already cached, it is yielded
+        straight away without any coarser ones.
+
+        :param t:               The T index. If None, use defaultT
+        :param compression:     Compression level for jpeg
+        :type compression:      Float
+        :param steps:           Steppings to render, coarsest first. The
+                                default projects about 8 sections first,
+                                then all of them.
+        :param cache:           Optional :class:`omero.gateway.utils.
+                                PlaneCache` for the rendered projections
+        """
+
+        projection = self.PROJECTIONS.get(self._pr, -1)
+        if not isinstance(
+                projection, omero.constants.projection.ProjectionType):
+            raise ValueError("No projection set: %s" % self._pr)
+        if t is None:
+            t = self._re.getDefaultT()
+        prStart, prEnd = 0, self.getSizeZ()-1
+        if self._prStart is not None:
+            prStart = self._prStart
+        if self._prEnd is not None:
+            prEnd = self._prEnd
+        if steps is None:
+            coarse = (prEnd - prStart + 1) // 8
+            steps = coarse > 1 and [coarse, 1] or [1]
+        if compression is not None:
+            self._re.setCompressionLevel(float(compression))
+
+        keys = {}
+        if cache is not None:
+            settings = self.getRenderingSettingsHash()
+            for stepping in steps:
+                keys[stepping] = (self.getPixelsId(), self._pr, prStart,
+                                  prEnd, stepping, t, compression, settings)
+            jpeg = cache.get(keys[steps[-1]])
+            if jpeg is not None:
+                yield steps[-1], jpeg
+                return
+
+        pending = []
+        for stepping in steps:
+            jpeg = keys and cache.get(keys[stepping]) or None
+            if jpeg is None:
+                jpeg = self._re.begin_renderProjectedCompressed(
+                    projection, long(t), stepping, prStart, prEnd,
+                    _ctx=self._conn.SERVICE_OPTS)
+            pending.append((stepping, jpeg))
+        for stepping, jpeg in pending:
+            if not isinstance(jpeg, str):
+                jpeg = self._re.end_renderProjectedCompressed(jpeg)
+                if keys:
+                    cache.put(keys[stepping], jpeg)
+            yield stepping, jpeg
+
     def exportOmeTiff(self, bufsize=0):
         """
         Exports the OME-TIFF representation of this image.
@@ -25,6 +25,11 @@
 
 import logging
 import json
+import os
+import shutil
+import threading
+
+from collections import OrderedDict
 
 logger = logging.getLogger(__name__)
 
@@ -211,3 +216,203 @@ def propertiesToDict(m, prefix=None):
         except:
             d[items[-1]] = value
     return nested_dict
+
+
+class PlaneCache(object):
+
+    """
+    Least-recently-used cache of raw plane and tile data which is bounded
+    by the total number of bytes held rather than by the number of entries.
+
+    Keys are (pixelsId, z, c, t, region) tuples as built by
+    :meth:`omero.gateway.PixelsWrapper.getTiles`, or the projection keys
+    built by :meth:`omero.gateway.ImageWrapper.renderProjectedJpegs` when
+    caching rendered projections. Hit, miss and eviction
+    counts are kept for monitoring and can be read via :meth:`getStats`.
+    """
+
+    def __init__(self, maxBytes=64 * 1024 * 1024):
+        self.maxBytes = maxBytes
+        self.bytes = 0
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+        self._entries = OrderedDict()
+        self._lock = threading.RLock()
+
+    def __len__(self):
+        return len(self._entries)
+
+    def __contains__(self, key):
+        return key in self._entries
+
+    def get(self, key):
+        """
+        Return the value for key, marking it as most recently used,
+        or None if it is not cached.
+        """
+        with self._lock:
+            value = self._entries.pop(key, None)
+            if value is None:
+                self.misses += 1
+                return None
+            self._entries[key] = value
+            self.hits += 1
+            return value
+
+    def put(self, key, value):
+        """
+        Store value under key, evicting the least recently used entries
+        until the byte budget is met. Values larger than the whole budget
+        are not cached.
+        """
+        size = len(value)
+        with self._lock:
+            old = self._entries.pop(key, None)
+            if old is not None:
+                self.bytes -= len(old)
+            if size > self.maxBytes:
+                return
+            self._entries[key] = value
+            self.bytes += size
+            while self.bytes > self.maxBytes:
+                evicted = self._entries.popitem(last=False)[1]
+                self.bytes -= len(evicted)
+                self.evictions += 1
+
+    def clear(self):
+        """Remove all entries. Counters are left untouched."""
+        with self._lock:
+            self._entries.clear()
+            self.bytes = 0
+
+    def getStats(self):
+        """
+        Returns a dictionary of the hit, miss and eviction counts along
+        with the current number of entries and bytes held.
+        """
+        with self._lock:
+            return {"hits": self.hits,
+                    "misses": self.misses,
+                    "evictions": self.evictions,
+                    "entries": len(self._entries),
+                    "bytes": self.bytes,
+                    "maxBytes": self.maxBytes}
+
+
+class ThumbnailCache(object):
+
+    """
+    Least-recently-used cache of thumbnails in a local directory, which
+    persists between sessions and is bounded by the total number of bytes
+    held.
+
+    Entries are keyed by pixels ID, thumbnail size and a version of the
+    rendering settings as built by
+    :meth:`omero.gateway.BlitzGateway.getThumbnailSet`, so that a thumbnail
+    is replaced once its settings change rather than after some timeout.
+    Each file's modification time records its last use.
+    """
+
+    def __init__(self, dir, maxBytes=100 * 1024 * 1024):
+        self.dir = dir
+        self.maxBytes = maxBytes
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+        self._lock = threading.RLock()
+        if not os.path.exists(self.dir):
+            os.makedirs(self.dir)
+        self.bytes = sum(size for mtime, size, path in self._entries())
+
+    def _entries(self):
+        rv = []
+        for p, _, files in os.walk(self.dir):
+            for f in files:
+                path = os.path.join(p, f)
+                try:
+                    st = os.stat(path)
+                except OSError:
+                    continue
+                rv.append((st.st_mtime, st.st_size, path))
+        return rv
+
+    def _path(self, pixelsId, size, version):
+        return os.path.join(self.dir, str(pixelsId),
+                            "%s_%s.jpg" % (size, version))
+
+    def get(self, pixelsId, size, version):
+        """
+        Return the thumbnail, marking it as most recently used, or None if
+        it is not cached for this version.
+        """
+        path = self._path(pixelsId, size, version)
+        with self._lock:
+            try:
+                with open(path, "rb") as f:
+                    data = f.read()
+                os.utime(path, None)
+            except (IOError, OSError):
+                self.misses += 1
+                return None
+            self.hits += 1
+            return data
+
+    def put(self, pixelsId, size, version, data):
+        """
+        Store the thumbnail, replacing any other version of it, then
+        delete the least recently used thumbnails until the byte budget is
+        met.
+        """
+        path = self._path(pixelsId, size, version)
+        dirname = os.path.dirname(path)
+        with self._lock:
+            try:
+                if not os.path.exists(dirname):
+                    os.makedirs(dirname)
+                for f in os.listdir(dirname):
+                    if f.startswith("%s_" % size):
+                        old = os.path.join(dirname, f)
+                        self.bytes -= os.path.getsize(old)
+                        os.remove(old)
+                tmp = path + ".tmp"
+                with open(tmp, "wb") as f:
+                    f.write(data)
+                os.rename(tmp, path)
+            except (IOError, OSError):
+                logger.warn("Failed to cache thumbnail %s" % path,
+                            exc_info=True)
+                return
+            self.bytes += len(data)
+            if self.bytes > self.maxBytes:
+                self._evict()
+
+    def _evict(self):
+        for mtime, size, path in sorted(self._entries()):
+            if self.bytes <= self.maxBytes:
+                break
+            try:
+                os.remove(path)
+            except OSError:
+                continue
+            self.bytes -= size
+            self.evictions += 1
+
+    def clear(self):
+        """Remove all entries. Counters are left untouched."""
+        with self._lock:
+            shutil.rmtree(self.dir, ignore_errors=True)
+            os.makedirs(self.dir)
+            self.bytes = 0
+
+    def getStats(self):
+        """
+        Returns a dictionary of the hit, miss and eviction counts along
+        with the current number of bytes held.
+        """
+        with self._lock:
+            return {"hits": self.hits,
+                    "misses": self.misses,
+                    "evictions": self.evictions,
+                    "bytes": self.bytes,
+                    "maxBytes": self.maxBytes}
@@ -0,0 +1,377 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+#
+# Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Import of many filesets into the managed repository at once, for ingest
+of whole directories, rather than one fileset after the other.
+"""
+
+import logging
+import threading
+import time
+
+from Queue import Queue
+
+import omero
+import omero.cmd
+import omero.grid
+import omero.model
+import omero.sys
+
+from omero.callbacks import CmdCallbackI
+from omero.rtypes import rbool, rlist, rlong, rstring, unwrap
+from omero.util import checksum
+from omero.util.upload import FilesetUploader
+from omero_version import omero_version
+
+logger = logging.getLogger("omero.util.bulk_import")
+
+
+def find_duplicate_fileset(client, paths, algorithm):
+    """
+    Returns the ID of a fileset already in the managed repository, owned
+    by the current user, whose used files have the same checksums as the
+    local files, computed with the named checksum algorithm, or None if
+    there is none. Files without a checksum never match.
+    """
+    hasher = checksum.get_hasher(algorithm)
+    hashes = []
+    pool = checksum.HashPool()
+    try:
+        for path in paths:
+            h = pool.share(hasher())
+            try:
+                with open(path, "rb") as f:
+                    while True:
+                        block = f.read(1024 * 1024)
+                        if not block:
+                            break
+                        h.update(block)
+            except:
+                checksum.close(h)
+                raise
+            hashes.append(h.hexdigest())
+    finally:
+        pool.close()
+    params = omero.sys.ParametersI()
+    params.add("hashes", rlist([rstring(x) for x in set(hashes)]))
+    params.add("algorithm", rstring(algorithm))
+    sf = client.getSession()
+    # Others' filesets may not be linkable, in read-only groups for one
+    params.add("owner", rlong(sf.getAdminService().getEventContext().userId))
+    # Every entry of the filesets with at least one of the files
+    rows = sf.getQueryService().projection(
+        "select fe.fileset.id, f.hash, h.value "
+        "from FilesetEntry fe join fe.originalFile f "
+        "left outer join f.hasher h "
+        "where fe.fileset.details.owner.id = :owner "
+        "and fe.fileset.id in (select fe2.fileset.id "
+        "from FilesetEntry fe2 join fe2.originalFile f2 "
+        "where f2.hash in (:hashes) and f2.hasher.value = :algorithm)",
+        params)
+    filesets = {}
+    for fid, hash, hasher in (unwrap(x) for x in rows):
+        filesets.setdefault(fid, []).append(
+            hasher == algorithm and hash or None)
+    for fid in sorted(filesets):
+        if sorted(filesets[fid]) == sorted(hashes):
+            return fid
+    return None
+
+
+class ImportCallback(CmdCallbackI):
+
+    """
+    Callback of the import of a single fileset, which reports the steps
+    of the server to its BulkImporter.
+    """
+
+    def __init__(self, client, handle, importer, index):
+        # Set first, the server may call step during registration
+        self.importer = importer
+        self.index = index
+        super(ImportCallback, self).__init__(client, handle)
+
+    def step(self, complete, total, current=None):
+        self.importer._step(self.index, complete, total)
+
+
+class BulkImporter(object):
+
+    """
+    Imports many filesets, each given as the list of its used files::
+
+        importer = BulkImporter(client, uploads=2, imports=4)
+        for paths in filesets:
+            importer.add(paths)
+        results = importer.run()
+
+    Each fileset goes through two stages: its import process is created
+    and its files are uploaded, with at most `uploads` filesets in that
+    stage at once, then the server imports it, with at most `imports`
+    filesets being imported at once. An uploaded fileset keeps its upload
+    slot until an import slot is free, so when the server falls behind the
+    uploads pause rather than pile up on the server. The backpressure only
+    comes from these slots: the steps reported by each import are kept in
+    `progress` for reporting.
+
+    A fileset whose upload or import fails is started again, up to
+    `retries` times with a delay which doubles each time, unless
+    :meth:`shouldRetry` decides otherwise. A failed upload is retried with
+    the same import process, so that no fileset is left behind on the
+    server for each attempt.
+
+    With dedupe, the files of each fileset are first checksummed locally,
+    and if the managed repository already holds a fileset of the current
+    user with files of the same checksums, its images are linked to the
+    target dataset, if any, and returned rather than uploaded and imported
+    again. Should the linking fail, the fileset is imported after all. The
+    files are then read twice for filesets which are not found, and
+    screens are not supported as targets.
+    """
+
+    def __init__(self, client, uploads=2, imports=4, retries=2, delay=5.0,
+                 target=None, dedupe=False, **uploaderOptions):
+        """
+        :param client:          Connected omero.client
+        :param uploads:         Number of filesets uploaded at once
+        :param imports:         Number of filesets imported by the server
+                                at once
+        :param retries:         Number of times a failed fileset is tried
+                                again
+        :param delay:           Seconds before the first retry
+        :param target:          Optional container to import into, as
+                                ImportSettings.userSpecifiedTarget
+        :param dedupe:          Reuse filesets already imported, see above
+        :param uploaderOptions: Passed to each
+                                omero.util.upload.FilesetUploader
+        """
+        self.client = client
+        self.uploads = uploads
+        self.imports = imports
+        self.retries = retries
+        self.delay = delay
+        self.target = target
+        if dedupe and target is not None and \
+                not isinstance(target, omero.model.DatasetI):
+            raise omero.ClientError("Only datasets are supported as "
+                                    "targets of a deduplicated import")
+        self.dedupe = dedupe
+        self.deduplicated = set()
+        self.uploaderOptions = uploaderOptions
+        self.filesets = []
+        self.progress = {}
+        self.attempts = {}
+        self._lock = threading.Lock()
+
+    def add(self, paths):
+        """
+        Adds a fileset, returning its index in the results of :meth:`run`.
+        """
+        self.filesets.append([str(x) for x in paths])
+        return len(self.filesets) - 1
+
+    def run(self, filesets=()):
+        """
+        Imports every fileset added, returning for each, in order, either
+        its omero.cmd.ImportResponse or the last exception it met.
+
+        :param filesets:    Optional iterable of further filesets, added as
+                            they come, so that importing starts before all
+                            are known, for instance
+                            omero.util.import_candidates.scan
+        """
+        repo = self.client.getManagedRepository()
+        self._algorithm = checksum.negotiate(repo)
+        self._uploadSlots = threading.Semaphore(self.uploads)
+        self._importSlots = threading.Semaphore(self.imports)
+        work = Queue()
+        for index, paths in enumerate(self.filesets):
+            work.put((index, paths))
+        results = {}
+
+        def run():
+            while True:
+                item = work.get()
+                if item is None:
+                    break
+                index, paths = item
+                results[index] = self._importWithRetries(repo, index, paths)
+
+        threads = [threading.Thread(target=run)
+                   for i in range(max(1, self.uploads + self.imports))]
+        for thread in threads:
+            thread.start()
+        try:
+            for paths in filesets:
+                index = self.add(paths)
+                work.put((index, self.filesets[index]))
+        finally:
+            for thread in threads:
+                work.put(None)
+            for thread in threads:
+                thread.join()
+        return [results.get(i) for i in range(len(self.filesets))]
+
+    def shouldRetry(self, index, error, attempt):
+        """
+        Returns whether a fileset should be tried again after the given
+        error. Errors returned by the import itself, omero.CmdError, are
+        not retried, since they usually mean the files cannot be imported.
+        """
+        return attempt <= self.retries and \
+            not isinstance(error, omero.CmdError)
+
+    def _importWithRetries(self, repo, index, paths):
+        attempt = 0
+        # Import process still awaiting its upload, kept between attempts
+        state = {}
+        try:
+            while True:
+                attempt += 1
+                with self._lock:
+                    self.attempts[index] = attempt
+                try:
+                    return self._import(repo, index, paths, state)
+                except Exception, e:
+                    logger.warn("Import of fileset %s failed (attempt %s)",
+                                index, attempt, exc_info=True)
+                    if not self.shouldRetry(index, e, attempt):
+                        return e
+                time.sleep(self.delay * 2 ** (attempt - 1))
+        finally:
+            if "proc" in state:
+                state["proc"].close()
+
+    def _import(self, repo, index, paths, state):
+        if self.dedupe:
+            fid = find_duplicate_fileset(self.client, paths,
+                                         self._algorithm.value.val)
+            if fid is not None:
+                logger.info("Fileset %s already imported as %s", index, fid)
+                try:
+                    rsp = self._reuse(fid)
+                except omero.ServerError:
+                    logger.warn("Reuse of fileset %s failed, importing "
+                                "fileset %s", fid, index, exc_info=True)
+                else:
+                    with self._lock:
+                        self.deduplicated.add(index)
+                    return rsp
+        self._uploadSlots.acquire()
+        try:
+            # Created once a slot is free, so that the slots also bound the
+            # filesets and import processes on the server
+            proc = state.get("proc")
+            if proc is None:
+                proc = repo.importFileset(self._fileset(paths),
+                                          self._settings())
+                state["proc"] = proc
+            uploader = FilesetUploader(
+                proc, paths,
+                hasher=checksum.get_hasher(self._algorithm.value.val),
+                **self.uploaderOptions)
+            hashes = uploader.upload()
+            self._importSlots.acquire()
+        finally:
+            self._uploadSlots.release()
+        # Once verified, the process cannot be uploaded to again
+        del state["proc"]
+        try:
+            try:
+                handle = proc.verifyUpload(hashes)
+                cb = ImportCallback(self.client, handle, self, index)
+                try:
+                    while not cb.block(500):
+                        pass
+                    rsp = cb.getResponse()
+                finally:
+                    cb.close(True)
+            finally:
+                self._importSlots.release()
+        finally:
+            proc.close()
+        if isinstance(rsp, omero.cmd.ERR):
+            raise omero.CmdError(rsp)
+        return rsp
+
+    def _reuse(self, fid):
+        """
+        Returns an ImportResponse of the pixels of the given fileset, after
+        linking its images to the target dataset.
+        """
+        sf = self.client.getSession()
+        params = omero.sys.ParametersI().addId(fid)
+        pixels = sf.getQueryService().findAllByQuery(
+            "select p from Pixels p join fetch p.image i "
+            "where i.fileset.id = :id order by p.id", params)
+        if self.target is not None:
+            params.add("did", rlong(unwrap(self.target.id)))
+            rows = sf.getQueryService().projection(
+                "select l.child.id from DatasetImageLink l "
+                "where l.parent.id = :did and l.child.fileset.id = :id",
+                params)
+            linked = set(unwrap(x)[0] for x in rows)
+            links = []
+            for image in set(p.image.id.val for p in pixels) - linked:
+                link = omero.model.DatasetImageLinkI()
+                link.parent = omero.model.DatasetI(self.target.id, False)
+                link.child = omero.model.ImageI(image, False)
+                links.append(link)
+            if links:
+                sf.getUpdateService().saveArray(links)
+        return omero.cmd.ImportResponse(pixels=pixels, objects=[])
+
+    def _step(self, index, complete, total):
+        with self._lock:
+            self.progress[index] = (complete, total)
+
+    def _fileset(self, paths):
+        fileset = omero.model.FilesetI()
+        for path in paths:
+            entry = omero.model.FilesetEntryI()
+            entry.setClientPath(rstring(path))
+            fileset.addFilesetEntry(entry)
+        upload = omero.model.UploadJobI()
+        upload.setVersionInfo(
+            [omero.model.NamedValue("omero.version", omero_version)])
+        fileset.linkJob(upload)
+        return fileset
+
+    def _settings(self):
+        settings = omero.grid.ImportSettings()
+        settings.doThumbnails = rbool(True)
+        settings.noStatsInfo = rbool(False)
+        settings.userSpecifiedTarget = self.target
+        settings.checksumAlgorithm = self._algorithm
+        return settings
+
+    def getStats(self):
+        """
+        Returns a dictionary of the number of filesets, of those which
+        were found already imported, of those which needed more than one
+        attempt and of the attempts in all.
+        """
+        with self._lock:
+            return {"filesets": len(self.filesets),
+                    "deduplicated": len(self.deduplicated),
+                    "retried": len([x for x in self.attempts.values()
+                                    if x > 1]),
+                    "attempts": sum(self.attempts.values())}
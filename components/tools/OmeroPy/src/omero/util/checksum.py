@@ -0,0 +1,293 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+#
+# Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Client side checksum providers for the checksum algorithms of imports,
+by the names of omero.model.ChecksumAlgorithm, each a callable returning
+a new hashlib style object as :class:`omero.util.upload.FilesetUploader`
+takes.
+
+As well as the algorithms of the standard library, CRC-32C and xxHash-64
+are provided when the crc32c and xxhash packages, which use the CPU's own
+instructions, are installed, and SHA1-160-Tree splits files into chunks
+which are hashed on several cores. The algorithm used for an import is
+negotiated with the server by :func:`negotiate`, so the faster ones are
+only chosen when the server offers them too.
+
+Run as a script to compare the throughput of each algorithm.
+"""
+
+import hashlib
+import struct
+import sys
+import threading
+import time
+import zlib
+
+from collections import OrderedDict
+from multiprocessing.pool import ThreadPool
+
+
+class _IntChecksum(object):
+
+    """
+    hashlib style wrapper of the 32 bit checksums of zlib. The digest is
+    little-endian, as the server's HashCode.toString() of an int.
+    """
+
+    def __init__(self, func):
+        self.func = func
+        self.value = func("")
+
+    def update(self, data):
+        self.value = self.func(data, self.value)
+
+    def digest(self):
+        return struct.pack("<I", self.value & 0xffffffff)
+
+    def hexdigest(self):
+        return self.digest().encode("hex")
+
+
+# Size of each chunk of SHA1-160-Tree, which is part of the algorithm
+TREE_CHUNK = 4 * 1024 * 1024
+
+
+class TreeHash(object):
+
+    """
+    hashlib style object which hashes each chunk of the data on a pool of
+    threads and returns the hash of the chunks' binary digests, in order.
+    hashlib releases the GIL while hashing, so the chunks are hashed on
+    as many cores as there are workers. A file shorter than a chunk is
+    hashed as a single chunk. The threads stop once :meth:`digest` is
+    called, or :meth:`close` if the hash is abandoned, unless they are
+    those of a :class:`HashPool`.
+    """
+
+    def __init__(self, algorithm=hashlib.sha1, chunk=TREE_CHUNK, workers=4):
+        self.algorithm = algorithm
+        self.chunk = chunk
+        self.workers = workers
+        self._pool = None
+        self._shared = False
+        self._buffer = []
+        self._buffered = 0
+        self._pending = []
+        self._digests = []
+
+    def _submit(self):
+        if self._pool is None:
+            self._pool = ThreadPool(self.workers)
+        # Bound the number of chunks held in memory
+        if len(self._pending) >= 2 * self.workers:
+            self._digests.append(self._pending.pop(0).get())
+        self._pending.append(self._pool.apply_async(
+            _chunk_digest, (self.algorithm, self._buffer)))
+        self._buffer = []
+        self._buffered = 0
+
+    def update(self, data):
+        # Pieces of a chunk are kept as given, only data spanning the end
+        # of a chunk is copied
+        offset = 0
+        while offset < len(data):
+            size = min(self.chunk - self._buffered, len(data) - offset)
+            if size == len(data):
+                self._buffer.append(data)
+            else:
+                self._buffer.append(data[offset:offset + size])
+            self._buffered += size
+            offset += size
+            if self._buffered == self.chunk:
+                self._submit()
+
+    def digest(self):
+        try:
+            if self._buffered or not (self._pending or self._digests):
+                self._submit()
+            self._digests.extend(p.get() for p in self._pending)
+            self._pending = []
+        finally:
+            self.close()
+        return self.algorithm("".join(self._digests)).digest()
+
+    def share(self, pool):
+        """
+        Hashes the chunks on the given ThreadPool, which is left running by
+        :meth:`close`, rather than on threads of its own. Must be called
+        before the first update.
+        """
+        self._pool = pool
+        self._shared = True
+
+    def close(self):
+        """
+        Stops the threads, dropping any chunks not yet hashed.
+        """
+        if self._pool is not None and not self._shared:
+            self._pool.terminate()
+        self._pool = None
+        self._pending = []
+
+    def hexdigest(self):
+        return self.digest().encode("hex")
+
+
+class HashPool(object):
+
+    """
+    Threads shared by the hashlib style objects of several files, such as
+    the :class:`TreeHash` of each file of an upload, so that they are
+    started once rather than for every file. They are only started for
+    objects which hash on threads, and stop on :meth:`close`.
+    """
+
+    def __init__(self, workers=4):
+        self.workers = workers
+        self._pool = None
+        self._lock = threading.Lock()
+
+    def share(self, digest):
+        """
+        Makes the given new hashlib style object use the pool if it hashes
+        on threads, and returns it.
+        """
+        share = getattr(digest, "share", None)
+        if share is not None:
+            with self._lock:
+                if self._pool is None:
+                    self._pool = ThreadPool(self.workers)
+                share(self._pool)
+        return digest
+
+    def close(self):
+        """
+        Stops the threads. Objects still using them must be closed first.
+        """
+        with self._lock:
+            if self._pool is not None:
+                self._pool.terminate()
+                self._pool = None
+
+
+def _chunk_digest(algorithm, pieces):
+    h = algorithm()
+    for piece in pieces:
+        h.update(piece)
+    return h.digest()
+
+
+# Checksum providers by algorithm name, fastest first. This is only the
+# order offered to the server: negotiate() returns the server's preferred
+# one, so the new algorithms are only used once the server is configured
+# to prefer them.
+ALGORITHMS = OrderedDict()
+
+try:
+    import crc32c
+    _crc32c = getattr(crc32c, "crc32c", None) or crc32c.crc32
+    ALGORITHMS["CRC-32C"] = lambda: _IntChecksum(_crc32c)
+except ImportError:
+    pass
+
+try:
+    import xxhash
+    ALGORITHMS["xxHash-64"] = xxhash.xxh64
+except ImportError:
+    pass
+
+ALGORITHMS["SHA1-160-Tree"] = TreeHash
+ALGORITHMS["Adler-32"] = lambda: _IntChecksum(zlib.adler32)
+ALGORITHMS["CRC-32"] = lambda: _IntChecksum(zlib.crc32)
+ALGORITHMS["MD5-128"] = hashlib.md5
+ALGORITHMS["SHA1-160"] = hashlib.sha1
+
+
+def close(digest):
+    """
+    Releases a hashlib style object which is abandoned before its digest
+    is taken, such as a :class:`TreeHash` with its threads.
+    """
+    close = getattr(digest, "close", None)
+    if close is not None:
+        close()
+
+
+def get_hasher(name):
+    """
+    Returns the checksum provider of the named algorithm, raising
+    omero.ClientError if it is not available on this client.
+    """
+    try:
+        return ALGORITHMS[name]
+    except KeyError:
+        import omero
+        raise omero.ClientError("Checksum algorithm %s not available"
+                                % name)
+
+
+def negotiate(repo):
+    """
+    Asks the managed repository which of the algorithms of this client it
+    prefers, returning the omero.model.ChecksumAlgorithm to set on the
+    ImportSettings. Falls back to SHA1-160 if there is no suggestion. The
+    server's own order of preference decides, not that of ALGORITHMS.
+    """
+    import omero.model
+    from omero.rtypes import rstring
+    offered = []
+    for name in ALGORITHMS:
+        algorithm = omero.model.ChecksumAlgorithmI()
+        algorithm.value = rstring(name)
+        offered.append(algorithm)
+    rv = repo.suggestChecksumAlgorithm(offered)
+    if rv is None:
+        rv = omero.model.ChecksumAlgorithmI()
+        rv.value = rstring("SHA1-160")
+    return rv
+
+
+def benchmark(size=256 * 1024 * 1024, block=1024 * 1024, repeat=3):
+    """
+    Times hashing size bytes of random data, in blocks as an upload
+    would, with every available algorithm. Returns an OrderedDict of the
+    best throughput of each in bytes per second.
+    """
+    import os
+    data = os.urandom(block)
+    rv = OrderedDict()
+    for name, hasher in ALGORITHMS.items():
+        times = []
+        for i in range(repeat):
+            t0 = time.time()
+            h = hasher()
+            for j in range(size // block):
+                h.update(data)
+            h.hexdigest()
+            times.append(time.time() - t0)
+        rv[name] = size / max(min(times), 1e-9)
+    return rv
+
+
+if __name__ == "__main__":
+    size = len(sys.argv) > 1 and int(sys.argv[1]) or 256
+    for name, rate in benchmark(size * 1024 * 1024).items():
+        print "%-16s %8.1f MB/s" % (name, rate / 1024 / 1024)
@@ -9,6 +9,13 @@
 
 """
 
+import os
+import re
+import threading
+
+from multiprocessing.pool import ThreadPool
+from Queue import Queue
+
 import omero
 
 from omero.util.temp_files import create_path, remove_path
@@ -91,6 +98,220 @@ def as_dictionary(path, readers=""):
     return groups
 
 
+def _pattern(directory, path):
+    """
+    Returns the path of a file relative to its unit, in lower case and
+    with every run of digits replaced by #, so that the files of similar
+    units, e.g. a.ome.tif or img_t001.tif, share patterns.
+    """
+    return re.sub(r"\d+", "#", os.path.relpath(path, directory).lower())
+
+
+def _signature(directory, files):
+    return tuple(sorted(set(_pattern(directory, x) for x in files)))
+
+
+class _Scanner(object):
+
+    def __init__(self, readers, workers, hints, batch):
+        self.readers = readers
+        self.hints = hints
+        self.batch = max(1, batch)
+        self.pool = ThreadPool(workers)
+        self.results = Queue()
+        # Held by the walk until every unit has been submitted
+        self.pending = 1
+        self.lock = threading.Lock()
+
+    def start(self, paths):
+        thread = threading.Thread(target=self.walk, args=(paths,))
+        thread.daemon = True
+        thread.start()
+
+    def walk(self, paths):
+        try:
+            files = [x for x in paths if not os.path.isdir(x)]
+            for i in range(0, len(files), self.batch):
+                self.submit([(None, files[i:i + self.batch])])
+            units = []
+            size = 0
+            for unit in self.units([x for x in paths if os.path.isdir(x)]):
+                units.append(unit)
+                size += len(unit[1])
+                if size >= self.batch:
+                    self.submit(units)
+                    units = []
+                    size = 0
+            if units:
+                self.submit(units)
+        except Exception, e:
+            self.results.put(e)
+        finally:
+            self.release()
+
+    def units(self, directories):
+        """
+        Yields (directory, files) for each directory which directly holds
+        files, with every file below it, and descends into those which
+        only hold directories.
+        """
+        for directory in directories:
+            names = sorted(os.listdir(directory))
+            subdirs = [os.path.join(directory, x) for x in names
+                       if os.path.isdir(os.path.join(directory, x))]
+            if len(subdirs) < len(names):
+                files = []
+                for root, dirnames, filenames in os.walk(directory):
+                    dirnames.sort()
+                    files.extend(os.path.join(root, x)
+                                 for x in sorted(filenames))
+                yield directory, files
+            else:
+                for unit in self.units(subdirs):
+                    yield unit
+
+    def submit(self, units):
+        with self.lock:
+            self.pending += 1
+        self.pool.apply_async(self.scan, (units,))
+
+    def scan(self, units):
+        try:
+            for group in self.groups(units):
+                self.results.put(group)
+        except Exception, e:
+            self.results.put(e)
+        finally:
+            self.release()
+
+    def release(self):
+        with self.lock:
+            self.pending -= 1
+            if self.pending == 0:
+                self.results.put(None)
+
+    def groups(self, units):
+        rv = []
+        todo = []
+        # Files of hinted units which the hint does not accept
+        others = []
+        for directory, files in units:
+            accepted = None
+            if self.hints is not None and directory is not None:
+                accepted = self.hints.get(_signature(directory, files))
+            if accepted is None:
+                todo.append((directory, files))
+                continue
+            for x in files:
+                if _pattern(directory, x) in accepted:
+                    rv.append([x])
+                else:
+                    others.append(x)
+        if others:
+            rv += as_dictionary(others, readers=self.readers).values()
+        if not todo:
+            return rv
+        if todo[0][0] is None:
+            # Files given as such rather than found in a unit
+            return rv + as_dictionary(
+                todo[0][1], readers=self.readers).values()
+        directories = [x[0] for x in todo]
+        groups = as_dictionary(directories, readers=self.readers).values()
+        roots = dict((os.path.abspath(x), x) for x in directories)
+        found = dict((x, []) for x in directories)
+        for group in groups:
+            unit = set(self.unit(roots, x) for x in group)
+            if None in unit or len(unit) > 1:
+                raise omero.ClientError(
+                    "The fileset of %s spans directories which are scanned "
+                    "apart, scan the directory holding all of its files "
+                    "instead" % group[0])
+            found[unit.pop()].append(group)
+        if self.hints is not None:
+            for directory, files in todo:
+                self.hint(directory, files, found[directory])
+        return rv + groups
+
+    def hint(self, directory, files, groups):
+        """
+        Records the patterns of the files of a unit which were each a
+        fileset of their own, unless some were grouped or a pattern was
+        both accepted and left out, which the hint could not reproduce.
+        """
+        if any(len(x) != 1 for x in groups):
+            return
+        accepted = set(_pattern(directory, x[0]) for x in groups)
+        chosen = set(os.path.abspath(x[0]) for x in groups)
+        if any(_pattern(directory, x) in accepted for x in files
+               if os.path.abspath(x) not in chosen):
+            return
+        self.hints[_signature(directory, files)] = accepted
+
+    def unit(self, roots, path):
+        """
+        Returns the directory of the unit holding the path, or None.
+        """
+        path = os.path.abspath(path)
+        while path not in roots:
+            parent = os.path.dirname(path)
+            if parent == path:
+                return None
+            path = parent
+        return roots[path]
+
+
+def scan(path, readers="", workers=4, hints=None, batch=1000):
+    """
+    Generator of the same groups of files as as_dictionary, each a list
+    starting with its key, for large trees. The tree is split into units:
+    each directory which directly holds files is a unit with everything
+    below it, while directories which only hold directories are descended
+    into. Units are offered to "import -f" as directories rather than
+    lists of files, several invocations at a time, and small units are
+    offered together, up to about batch files per invocation, so that
+    neither the length of the command line nor the start up of each
+    invocation limit large trees. The groups of each invocation are
+    yielded as soon as they are found, so that importing can start before
+    the whole tree has been scanned.
+
+    Files of a group must therefore be in the same unit, as when they are
+    below the directory of the main file of the fileset, for instance the
+    TimePoint_N or data directories of a plate next to its metadata file.
+    omero.ClientError is raised as soon as a group is found to span
+    units, since groups of other units may have been split, in which case
+    the directory holding the whole fileset should be scanned instead.
+
+    Decisions can be reused through hints, a dict which may be kept
+    across scans. The signature of a unit is the set of patterns of its
+    files: their paths below the unit, in lower case, with every run of
+    digits replaced by #, so that full suffixes such as .ome.tif and the
+    layout of subdirectories are kept. When every file of a unit was
+    found to be a fileset of its own, its signature is recorded along
+    with the patterns which were accepted, unless a file left out shares
+    an accepted pattern. Further units with the same signature then skip
+    "import -f" and yield each file with an accepted pattern on its own.
+    Their other files are still offered to "import -f", as files, so that
+    none is dropped. This suits trees of many similar directories of
+    single file formats, and should not be used where files of the same
+    names may be grouped differently, such as multi-file OME-TIFFs whose
+    grouping depends on their content.
+
+    Raises the first error met by any invocation.
+    """
+    scanner = _Scanner(str(readers), workers, hints, batch)
+    try:
+        scanner.start(_to_list(path))
+        while True:
+            group = scanner.results.get()
+            if group is None:
+                break
+            if isinstance(group, Exception):
+                raise group
+            yield group
+    finally:
+        scanner.pool.terminate()
+
+
 if __name__ == "__main__":
     import sys
     as_stdout(sys.argv[1:])
@@ -32,7 +32,7 @@ import json
 from getpass import getpass
 from getopt import getopt, GetoptError
 from itertools import izip
-from collections import defaultdict
+from collections import defaultdict, deque
 import warnings
 
 import omero.clients
@@ -1282,16 +1282,44 @@ class BulkToMapAnnotationContext(_QueryContext):
             links.append(link)
         return links, ma
 
-    def _save_annotation_links(self, links):
+    def _begin_save_annotation_links(self, links):
         """
-        Save `AnnotationLinks` including the child annotation in one go.
+        Start saving `AnnotationLinks` including the child annotation in one
+        go, only returning their IDs so the saved graph is neither sent back
+        nor kept by the client. Returns a tuple of (`UpdatePrx`,
+        `Ice.AsyncResult`) for `_end_save_links`.
         See `_create_map_annotation_links`
         """
         sf = self.client.getSession()
         group = str(self.target_object.details.group.id)
         update_service = sf.getUpdateService()
-        arr = update_service.saveAndReturnArray(links, {'omero.group': group})
-        return arr
+        return update_service, update_service.begin_saveAndReturnIds(
+            links, {'omero.group': group})
+
+    def _end_save_links(self, inflight=0):
+        """
+        Wait for the oldest pending saves until no more than `inflight`
+        remain, adding the number of links saved to `saved`. If a save
+        failed, every other pending save is waited for too, so that none is
+        left to commit unseen, before the first failure is raised.
+        """
+        count = 0
+        error = None
+        while len(self._pending) > (inflight if error is None else 0):
+            update_service, result = self._pending.popleft()
+            try:
+                count += len(update_service.end_saveAndReturnIds(result))
+            except Exception:
+                if error is None:
+                    error = sys.exc_info()
+                else:
+                    log.error('Failed to save links', exc_info=True)
+        if count:
+            self.saved += count
+            log.info('Created/linked %d MapAnnotations (total %s)',
+                     count, self.saved)
+        if error is not None:
+            raise error[0], error[1], error[2]
 
     def _save_annotation_and_links(self, links, ann, batch_size):
         """
@@ -1415,45 +1443,72 @@ class BulkToMapAnnotationContext(_QueryContext):
     def _write_log(self, text):
         log.debug("BulkToMapAnnotation:write_to_omero - %s" % text)
 
-    def write_to_omero(self, batch_size=1000, loops=10, ms=500):
-        i = 0
+    def write_to_omero(self, batch_size=1000, loops=10, ms=500, inflight=2):
+        """
+        Save the MapAnnotations and their links in batches of up to
+        `batch_size` links, each a transaction of its own. Up to `inflight`
+        batches are sent without waiting for the server, so that the next
+        batch is built while the previous ones are saved.
+
+        Only the MapAnnotations of the bulk annotations are pipelined; the
+        metadata of an import is saved by the importer, not here.
+
+        If a save fails, the batches already sent are still waited for and
+        the first failure is raised. The batches saved until then stay
+        committed: their number of links is logged and kept as `saved`.
+        """
         cur = 0
         links = []
+        self.saved = 0
+        self._pending = deque()
+        self._inflight = max(inflight, 1)
 
         # This may be many-links-to-one-new-mapann so everything must
         # be kept together to avoid duplication of the mapann
         self._write_log("Start")
-        cmas = self.mapannotations.get_map_annotations()
-        self._write_log("found %s annotations" % len(cmas))
-        for cma in cmas:
-            batch, ma = self._create_map_annotation_links(cma)
-            self._write_log("found batch of size %s" % len(batch))
-            if len(batch) < batch_size:
-                links.append(batch)
-                cur += len(batch)
-                if cur > 10 * batch_size:
-                    self._write_log("running batches. accumulated: %s" % cur)
-                    i += self._write_links(links, batch_size, i)
-                    links = []
-                    cur = 0
-            else:
-                self._write_log("running grouped_batch")
-                sz = self._save_annotation_and_links(batch, ma, batch_size)
-                i += sz
-                log.info('Created/linked %d MapAnnotations (total %s)',
-                         sz, i)
-        # Handle any remaining writes
-        i += self._write_links(links, batch_size, i)
-
-    def _write_links(self, links, batch_size, i):
-        count = 0
+        try:
+            cmas = self.mapannotations.get_map_annotations()
+            self._write_log("found %s annotations" % len(cmas))
+            for cma in cmas:
+                batch, ma = self._create_map_annotation_links(cma)
+                self._write_log("found batch of size %s" % len(batch))
+                if len(batch) < batch_size:
+                    links.append(batch)
+                    cur += len(batch)
+                    if cur > 10 * batch_size:
+                        self._write_log(
+                            "running batches. accumulated: %s" % cur)
+                        self._write_links(links, batch_size)
+                        links = []
+                        cur = 0
+                else:
+                    # Finish the pending saves first, so that no more than
+                    # `inflight` batches are ever outstanding
+                    self._end_save_links()
+                    self._write_log("running grouped_batch")
+                    sz = self._save_annotation_and_links(
+                        batch, ma, batch_size)
+                    self.saved += sz
+                    log.info('Created/linked %d MapAnnotations (total %s)',
+                             sz, self.saved)
+            # Handle any remaining writes
+            self._write_links(links, batch_size)
+            self._end_save_links()
+        except Exception:
+            error = sys.exc_info()
+            try:
+                self._end_save_links()
+            except Exception:
+                log.error('Failed to save links', exc_info=True)
+            log.error('Created/linked %d MapAnnotations before failing',
+                      self.saved)
+            raise error[0], error[1], error[2]
+
+    def _write_links(self, links, batch_size):
         for batch in self._grouped_batch(links, sz=batch_size):
             self._write_log("batch size: %s" % len(batch))
-            arr = self._save_annotation_links(batch)
-            count += len(arr)
-            log.info('Created/linked %d MapAnnotations (total %s)',
-                     len(arr), i+count)
-        return count
+            self._end_save_links(self._inflight - 1)
+            self._pending.append(self._begin_save_annotation_links(batch))
 
 
 class DeleteMapAnnotationContext(_QueryContext):
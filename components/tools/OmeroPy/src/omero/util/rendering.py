@@ -0,0 +1,239 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+#
+# Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Client side rendering of raw planes for the common cases: 8 and 16 bit
+pixels, linear, polynomial or logarithmic family and no noise reduction.
+
+Each channel is quantized through a lookup table indexed by raw pixel
+value, built once from the window and curve, so rendering a plane is a few
+numpy array operations per channel rather than a call per pixel. Planes
+can be fetched with :meth:`omero.gateway.PixelsWrapper.getPlanes` and the
+settings read from :class:`omero.gateway.ChannelWrapper`.
+"""
+
+import sys
+import time
+
+import numpy
+
+from omero.model.enums import PixelsTypeint8, PixelsTypeuint8
+from omero.model.enums import PixelsTypeint16, PixelsTypeuint16
+
+# Smallest value of each supported pixels type, used to offset lookups
+LUT_TYPES = {PixelsTypeint8: -2 ** 7,
+             PixelsTypeuint8: 0,
+             PixelsTypeint16: -2 ** 15,
+             PixelsTypeuint16: 0}
+LUT_SIZES = {PixelsTypeint8: 2 ** 8,
+             PixelsTypeuint8: 2 ** 8,
+             PixelsTypeint16: 2 ** 16,
+             PixelsTypeuint16: 2 ** 16}
+
+
+def _curve(values, family, coefficient):
+    """
+    Applies the curve to values already clamped to the window and offset by
+    its start, as the server's quantum strategy does, so that they are not
+    negative and a polynomial with a non-integer coefficient is defined.
+    """
+    if family == 'linear':
+        return values
+    if family == 'polynomial':
+        return numpy.power(values, coefficient)
+    if family == 'logarithmic':
+        return numpy.log(numpy.maximum(values, 1))
+    raise ValueError("Family %s not supported, use the rendering engine"
+                     % family)
+
+
+def quantum_lut(pixels_type, start, end, family='linear', coefficient=1.0,
+                cd_start=0, cd_end=255, inverted=False):
+    """
+    Returns the lookup table mapping every raw value of the pixels type to
+    its quantized value, as the rendering engine does for the same window,
+    family and codomain interval.
+
+    @param pixels_type:     Pixels type, one of the keys of LUT_TYPES
+    @param start:           Window start
+    @param end:             Window end
+    @param family:          'linear', 'polynomial' or 'logarithmic'
+    @param coefficient:     Curve coefficient, used by polynomial
+    @param cd_start:        Codomain interval start
+    @param cd_end:          Codomain interval end
+    @param inverted:        Reverse the codomain, as ReverseIntensityContext
+    @return:                numpy uint8 array of LUT_SIZES[pixels_type]
+    """
+    if pixels_type not in LUT_TYPES:
+        raise ValueError("Pixels type %s not supported, use the rendering "
+                         "engine" % pixels_type)
+    offset = LUT_TYPES[pixels_type]
+    values = numpy.arange(offset, offset + LUT_SIZES[pixels_type],
+                          dtype=numpy.float64)
+    values = numpy.clip(values, start, end) - start
+    ys, ye = _curve(numpy.array([0, end - start], dtype=numpy.float64),
+                    family, coefficient)
+    if ye == ys:
+        lut = numpy.where(values < end - start, cd_start, cd_end)
+    else:
+        lut = cd_start + (cd_end - cd_start) * (
+            _curve(values, family, coefficient) - ys) / (ye - ys)
+    if inverted:
+        lut = cd_end + cd_start - lut
+    return numpy.rint(lut).astype(numpy.uint8)
+
+
+def color_luts(lut, rgba):
+    """
+    Returns the red, green and blue lookup tables of a channel, combining
+    its quantum lookup table with its color and alpha so that each color
+    component is a single lookup per pixel.
+
+    @param lut:     Quantum lookup table, see L{quantum_lut}
+    @param rgba:    Channel color as (r, g, b, a), 0-255
+    @return:        Tuple of three numpy uint16 arrays
+    """
+    red, green, blue, alpha = rgba
+    lut = lut.astype(numpy.uint32)
+    return tuple(((lut * c * alpha) // (255 * 255)).astype(numpy.uint16)
+                 for c in (red, green, blue))
+
+
+def render_as_packed_int(planes, channels, pixels_type, greyscale=False):
+    """
+    Renders the planes of the active channels into a 2D array of packed
+    ARGB ints, as RenderingEngine.renderAsPackedInt returns.
+
+    @param planes:          List of 2D numpy arrays, one per active channel
+    @param channels:        List of dicts, one per plane, with 'start',
+                            'end' and 'rgba' and optionally 'family',
+                            'coefficient' and 'inverted'. May instead hold
+                            precomputed 'luts' from L{color_luts}, which
+                            saves building them for every plane. Channels
+                            with 'noiseReduction' set are rejected.
+    @param pixels_type:     Pixels type of the planes
+    @param greyscale:       Render the first channel in grey, ignoring its
+                            color, as the greyscale rendering model does
+    @return:                numpy int32 array of the plane's shape
+    """
+    shape = planes[0].shape
+    offset = LUT_TYPES.get(pixels_type, 0)
+    red = numpy.zeros(shape, dtype=numpy.uint16)
+    green = numpy.zeros(shape, dtype=numpy.uint16)
+    blue = numpy.zeros(shape, dtype=numpy.uint16)
+    if greyscale:
+        planes = planes[:1]
+    for plane, channel in zip(planes, channels):
+        if channel.get('noiseReduction', False):
+            raise ValueError("Noise reduction not supported, use the "
+                             "rendering engine")
+        luts = channel.get('luts')
+        if luts is None or greyscale:
+            lut = quantum_lut(
+                pixels_type, channel['start'], channel['end'],
+                channel.get('family', 'linear'),
+                channel.get('coefficient', 1.0),
+                inverted=channel.get('inverted', False))
+            rgba = greyscale and (255, 255, 255, 255) or channel['rgba']
+            luts = color_luts(lut, rgba)
+        index = plane
+        if offset:
+            # Signed types are shifted so that their lookups start at 0
+            index = plane.astype(numpy.int32) - offset
+        red += luts[0][index]
+        green += luts[1][index]
+        blue += luts[2][index]
+    rv = numpy.full(shape, 0xff000000, dtype=numpy.uint32)
+    rv |= numpy.minimum(red, 255).astype(numpy.uint32) << 16
+    rv |= numpy.minimum(green, 255).astype(numpy.uint32) << 8
+    rv |= numpy.minimum(blue, 255).astype(numpy.uint32)
+    return rv.view(numpy.int32)
+
+
+def _render_without_luts(planes, channels):
+    """
+    Renders as L{render_as_packed_int} but computes every pixel's quantized
+    value from the window on each call, without lookup tables, as the
+    generic quantum strategy does. Used as the baseline of L{benchmark}.
+    """
+    shape = planes[0].shape
+    rgb = [numpy.zeros(shape, dtype=numpy.uint32) for i in range(3)]
+    for plane, channel in zip(planes, channels):
+        start, end = channel['start'], channel['end']
+        family = channel.get('family', 'linear')
+        coefficient = channel.get('coefficient', 1.0)
+        ys, ye = _curve(numpy.array([0, end - start], dtype=numpy.float64),
+                        family, coefficient)
+        values = numpy.clip(plane.astype(numpy.float64), start, end) - start
+        q = 255 * (_curve(values, family, coefficient) - ys) / (ye - ys)
+        if channel.get('inverted', False):
+            q = 255 - q
+        q = numpy.rint(q).astype(numpy.uint32)
+        alpha = channel['rgba'][3]
+        for i in range(3):
+            rgb[i] += (q * channel['rgba'][i] * alpha) // (255 * 255)
+    rv = numpy.full(shape, 0xff000000, dtype=numpy.uint32)
+    for i, shift in enumerate((16, 8, 0)):
+        rv |= numpy.minimum(rgb[i], 255) << shift
+    return rv.view(numpy.int32)
+
+
+def benchmark(size=2048, channel_count=4, pixels_type=PixelsTypeuint16,
+              repeat=5):
+    """
+    Times rendering random planes with and without lookup tables, returning
+    the best time of each in seconds as a tuple.
+
+    @param size:            Width and height of the planes
+    @param channel_count:   Number of active channels
+    @param pixels_type:     Pixels type of the planes
+    @param repeat:          Number of renders timed for each
+    """
+    dtype = {PixelsTypeint8: numpy.int8, PixelsTypeuint8: numpy.uint8,
+             PixelsTypeint16: numpy.int16,
+             PixelsTypeuint16: numpy.uint16}[pixels_type]
+    info = numpy.iinfo(dtype)
+    planes = [numpy.random.randint(info.min, info.max + 1, (size, size))
+              .astype(dtype) for c in range(channel_count)]
+    colors = [(255, 0, 0, 255), (0, 255, 0, 255), (0, 0, 255, 255),
+              (255, 255, 0, 255)]
+    channels = [{'start': info.min / 4, 'end': info.max / 2,
+                 'rgba': colors[c % len(colors)]}
+                for c in range(channel_count)]
+    for channel in channels:
+        channel['luts'] = color_luts(quantum_lut(
+            pixels_type, channel['start'], channel['end']), channel['rgba'])
+    rv = []
+    for f in (lambda: render_as_packed_int(planes, channels, pixels_type),
+              lambda: _render_without_luts(planes, channels)):
+        times = []
+        for i in range(repeat):
+            t0 = time.time()
+            f()
+            times.append(time.time() - t0)
+        rv.append(min(times))
+    return tuple(rv)
+
+
+if __name__ == "__main__":
+    size = len(sys.argv) > 1 and int(sys.argv[1]) or 2048
+    lut, generic = benchmark(size)
+    print ("%dx%d, 4 channels: with lookup tables %.3fs, without lookup "
+           "tables %.3fs" % (size, size, lut, generic))
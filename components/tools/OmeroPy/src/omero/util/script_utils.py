@@ -26,8 +26,7 @@ import logging
 import os
 import warnings
 
-from struct import unpack
-from numpy import add, array, asarray, fromstring, reshape, zeros
+from numpy import add, asarray, frombuffer, fromstring, reshape, zeros
 from os.path import exists
 
 import omero.clients
@@ -651,7 +650,7 @@ def downloadPlane(rawPixelsStore, pixels, z, c, t):
     return download_plane(rawPixelsStore, pixels, z, c, t)
 
 
-def download_plane(raw_pixels_store, pixels, z, c, t):
+def download_plane(raw_pixels_store, pixels, z, c, t, copy=True):
     """
     Download the plane [z, c, t] for image pixels.
     Pixels must have pixelsType loaded.
@@ -661,19 +660,23 @@ def download_plane(raw_pixels_store, pixels, z, c, t):
     @param z The Z-Section to retrieve.
     @param c The channel to retrieve.
     @param t The timepoint to retrieve.
+    @param copy If False, a read-only view in the server's big-endian order
+                is returned directly over the received bytes, rather than
+                a copy in native order.
     @return The Plane of the image for z, c, t
     """
     raw_plane = raw_pixels_store.getPlane(z, c, t)
     size_x = pixels.getSizeX().getValue()
     size_y = pixels.getSizeY().getValue()
     pixel_type = pixels.getPixelsType().getValue().getValue()
-    convert_type = '>' + str(size_x * size_y) + \
-        pixelstypetopython.toPython(pixel_type)
-    converted_plane = unpack(convert_type, raw_plane)
+    wire_type = '>' + pixelstypetopython.toPython(pixel_type)
+    converted_plane = frombuffer(
+        raw_plane, dtype=wire_type, count=size_x * size_y)
+    converted_plane = converted_plane.reshape(size_y, size_x)
+    if not copy:
+        return converted_plane
     numpy_type = pixelstypetopython.toNumpy(pixel_type)
-    remapped_plane = array(converted_plane, numpy_type)
-    remapped_plane.resize(size_y, size_x)
-    return remapped_plane
+    return converted_plane.astype(numpy_type)
 
 
 def getPlaneFromImage(imagePath, rgbIndex=None):
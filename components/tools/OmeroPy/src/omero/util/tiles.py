@@ -7,6 +7,9 @@
 
 """
 
+import threading
+import time
+
 
 class TileLoopIteration(object):
     """
@@ -46,6 +49,9 @@ class TileData(object):
         """
         raise NotImplementedError()
 
+    # Set by forEachTile once every tile has been visited without error
+    completed = False
+
     def close(self):
         raise NotImplementedError()
 
@@ -85,45 +91,120 @@ class TileLoop(object):
         data = self.createData()
 
         try:
-            tileCount = 0
-            for t in range(0, sizeT):
+            tiles = self.tiles(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                               tileWidth, tileHeight)
+            rv = self.runTiles(data, tiles, iteration)
+            data.completed = True
+            return rv
 
-                for c in range(0, sizeC):
+        finally:
+            data.close()
 
-                    for z in range(0, sizeZ):
+    def tiles(self, sizeX, sizeY, sizeZ, sizeC, sizeT,
+              tileWidth, tileHeight):
+        """
+        Generates (z, c, t, x, y, w, h) for every tile in the order in which
+        forEachTile visits them. Parameters are as for forEachTile.
+        """
+        for t in range(0, sizeT):
 
-                        for tileOffsetY in range(
-                                0, ((sizeY + tileHeight - 1) / tileHeight)):
+            for c in range(0, sizeC):
 
-                            for tileOffsetX in range(
-                                    0, ((sizeX + tileWidth - 1) / tileWidth)):
+                for z in range(0, sizeZ):
 
-                                x = tileOffsetX * tileWidth
-                                y = tileOffsetY * tileHeight
-                                w = tileWidth
+                    for tileOffsetY in range(
+                            0, ((sizeY + tileHeight - 1) / tileHeight)):
 
-                                if (w + x > sizeX):
-                                    w = sizeX - x
+                        for tileOffsetX in range(
+                                0, ((sizeX + tileWidth - 1) / tileWidth)):
 
-                                h = tileHeight
-                                if (h + y > sizeY):
-                                    h = sizeY - y
+                            x = tileOffsetX * tileWidth
+                            y = tileOffsetY * tileHeight
+                            w = tileWidth
 
-                                iteration.run(data, z, c, t,
-                                              x, y, w, h, tileCount)
-                                tileCount += 1
-            return tileCount
+                            if (w + x > sizeX):
+                                w = sizeX - x
 
-        finally:
-            data.close()
+                            h = tileHeight
+                            if (h + y > sizeY):
+                                h = sizeY - y
+
+                            yield z, c, t, x, y, w, h
+
+    def runTiles(self, data, tiles, iteration):
+        """
+        Calls iteration.run for each of the tiles in turn. Subclasses may
+        override this to change how the calls are scheduled, but must not
+        return before every call has completed.
+
+        :param data: TileData from createData
+        :param tiles: Iterable of (z, c, t, x, y, w, h)
+        :param iteration: Invoker to call for each tile.
+        :returns: The total number of tiles iterated over.
+        """
+        tileCount = 0
+        for z, c, t, x, y, w, h in tiles:
+            iteration.run(data, z, c, t, x, y, w, h, tileCount)
+            tileCount += 1
+        return tileCount
+
+
+class ChannelMinMax(object):
+    """
+    Accumulates the minimum and maximum value per channel of the raw,
+    big-endian tile buffers passed to TileData.setTile so that StatsInfo
+    can be saved without a second pass over the pixel data.
+    """
+
+    def __init__(self, pixelsType):
+        """
+        :param pixelsType: The value of the PixelsType, e.g. "uint16".
+        Packed types such as "bit" are not supported.
+        """
+        from omero.util import pixelstypetopython
+        code = pixelstypetopython.toPython(pixelsType)
+        if code is None:
+            raise ValueError("Unsupported pixels type: %s" % pixelsType)
+        self.dtype = ">" + code
+        self.values = dict()
+
+    def update(self, c, buffer):
+        """
+        Add the values of a raw tile from channel c.
+        """
+        import numpy
+        if not isinstance(buffer, str):
+            # Ice also accepts a sequence of byte values
+            buffer = (numpy.asarray(buffer) & 0xff).astype(numpy.uint8)
+        values = numpy.frombuffer(buffer, dtype=self.dtype)
+        if not values.size:
+            return
+        lo = values.min().item()
+        hi = values.max().item()
+        current = self.values.get(c)
+        if current is None:
+            self.values[c] = [lo, hi]
+        else:
+            current[0] = min(current[0], lo)
+            current[1] = max(current[1], hi)
+
+    def get(self, c):
+        """
+        Returns (min, max) for channel c or None if no tile was written.
+        """
+        current = self.values.get(c)
+        if current is not None:
+            return tuple(current)
+        return None
 
 
 class RPSTileData(TileData):
     """
     """
-    def __init__(self, loop, rps):
+    def __init__(self, loop, rps, minmax=None):
         self.loop = loop
         self.rps = rps
+        self.minmax = minmax
         self.pixels = None
 
     def getTile(self, z, c, t, x, y, w, h):
@@ -131,18 +212,32 @@ class RPSTileData(TileData):
 
     def setTile(self, buffer, z, c, t, x, y, w, h):
         self.rps.setTile(buffer, z, c, t, x, y, w, h)
+        if self.minmax is not None:
+            self.minmax.update(c, buffer)
 
     def close(self):
         pixels = self.rps.save()
         self.loop.setPixels(pixels)
         self.rps.close()
+        # Values of a partial write are not those of the image
+        if self.minmax is not None and self.completed:
+            self.loop.saveStatsInfo(self.minmax)
 
 
 class RPSTileLoop(TileLoop):
 
-    def __init__(self, session, pixels):
+    def __init__(self, session, pixels, stats=False):
+        """
+        :param session: ServiceFactoryPrx
+        :param pixels: Pixels instance to write to
+        :param stats: If True, the minimum and maximum of each channel are
+        accumulated as tiles are written and saved as the channels'
+        StatsInfo once the loop finishes without error. Only use when every
+        tile of the image is written by the loop.
+        """
         self.session = session
         self.pixels = pixels
+        self.stats = stats
 
     def getSession(self):
         return self.session
@@ -163,9 +258,50 @@ class RPSTileLoop(TileLoop):
         """
         self.pixels = pixels
 
+    def saveStatsInfo(self, minmax):
+        """
+        Used by RPSTileData to save the accumulated minimum and maximum of
+        each channel as its StatsInfo. Channels to which no tile was
+        written are left unchanged.
+        """
+        from omero.model import PixelsI, StatsInfoI
+        from omero.rtypes import rdouble
+        pid = self.getPixels().getId().getValue()
+        srv = self.getSession().getPixelsService()
+        pixels = srv.retrievePixDescription(pid)
+        channels = []
+        for c, channel in enumerate(pixels.copyChannels()):
+            values = minmax.get(c)
+            if values is None:
+                continue
+            statsInfo = channel.getStatsInfo()
+            if statsInfo is None:
+                statsInfo = StatsInfoI()
+            statsInfo.setGlobalMin(rdouble(values[0]))
+            statsInfo.setGlobalMax(rdouble(values[1]))
+            channel.setStatsInfo(statsInfo)
+            channel.setPixels(PixelsI(pid, False))
+            channels.append(channel)
+        if channels:
+            self.getSession().getUpdateService().saveArray(channels)
+
+    def _isPixelsTypeLoaded(self):
+        pixelsType = self.pixels.getPixelsType()
+        return pixelsType is not None and pixelsType.loaded
+
+    def newData(self, rps, minmax):
+        """
+        Returns the TileData wrapping rps for createData.
+        """
+        return RPSTileData(self, rps, minmax)
+
     def createData(self):
         rps = self.getSession().createRawPixelsStore()
-        data = RPSTileData(self, rps)
+        minmax = None
+        if self.stats:
+            minmax = ChannelMinMax(
+                self.getPixels().getPixelsType().getValue().getValue())
+        data = self.newData(rps, minmax)
         # 'false' is ignored here.
         rps.setPixelsId(self.getPixels().getId().getValue(), False)
         return data
@@ -187,7 +323,8 @@ class RPSTileLoop(TileLoop):
         if self.pixels is None or self.pixels.id is None:
             import omero
             raise omero.ClientError("pixels instance must be managed!")
-        elif not self.pixels.loaded:
+        elif not self.pixels.loaded or (
+                self.stats and not self._isPixelsTypeLoaded()):
             try:
                 srv = self.getSession().getPixelsService()
                 self.pixels = srv.retrievePixDescription(self.pixels.id.val)
@@ -205,3 +342,172 @@ class RPSTileLoop(TileLoop):
         return TileLoop.forEachTile(
             self, sizeX, sizeY, sizeZ, sizeC, sizeT,
             tileWidth, tileHeight, iteration)
+
+
+class AsyncRPSTileData(RPSTileData):
+    """
+    RPSTileData which sends setTile calls asynchronously, only blocking
+    once a fixed number of calls are awaiting a reply. setTile may be
+    called from several threads at once. The number of tiles and bytes
+    written and the time each call took are recorded on the loop.
+    """
+
+    def __init__(self, loop, rps, minmax=None, inflight=8):
+        super(AsyncRPSTileData, self).__init__(loop, rps, minmax)
+        self.inflight = inflight
+        self.slots = threading.BoundedSemaphore(inflight)
+        self.lock = threading.Lock()
+        self.errors = []
+
+    def setTile(self, buffer, z, c, t, x, y, w, h):
+        if self.errors:
+            raise self.errors[0]
+        self.slots.acquire()
+        start = time.time()
+        size = len(buffer)
+
+        def response():
+            self.loop.recordTile(size, time.time() - start)
+            self.slots.release()
+
+        def exception(e):
+            with self.lock:
+                self.errors.append(e)
+            self.slots.release()
+
+        try:
+            self.rps.begin_setTile(buffer, z, c, t, x, y, w, h,
+                                   _response=response, _ex=exception)
+        except:
+            self.slots.release()
+            raise
+        if self.minmax is not None:
+            with self.lock:
+                self.minmax.update(c, buffer)
+
+    def flush(self):
+        """
+        Waits for every outstanding setTile call to complete, raising the
+        first error which any of them met.
+        """
+        for i in range(self.inflight):
+            self.slots.acquire()
+        for i in range(self.inflight):
+            self.slots.release()
+        if self.errors:
+            raise self.errors[0]
+
+    def close(self):
+        try:
+            self.flush()
+        except:
+            self.rps.close()
+            raise
+        super(AsyncRPSTileData, self).close()
+
+
+class ParallelRPSTileLoop(RPSTileLoop):
+    """
+    RPSTileLoop which runs the iteration for several tiles at once on a
+    pool of worker threads. The tiles are written through a single
+    RawPixelsStore with at most `inflight` setTile calls outstanding, so
+    that generating or uploading an image is not bound by the latency of
+    each call. The iteration must therefore be safe to call concurrently
+    and may not rely on the order in which tiles are visited.
+
+    After forEachTile, :meth:`getStats` reports the throughput achieved
+    and the latency of the setTile calls.
+    """
+
+    def __init__(self, session, pixels, stats=False, workers=4, inflight=8):
+        super(ParallelRPSTileLoop, self).__init__(session, pixels, stats)
+        self.workers = workers
+        self.inflight = inflight
+        self._statsLock = threading.Lock()
+        self._resetStats()
+
+    def _resetStats(self):
+        self.tileCount = 0
+        self.byteCount = 0
+        self.totalLatency = 0.0
+        self.maxLatency = 0.0
+        self.elapsed = 0.0
+
+    def recordTile(self, size, latency):
+        """
+        Used by AsyncRPSTileData to record a completed setTile call.
+        """
+        with self._statsLock:
+            self.tileCount += 1
+            self.byteCount += size
+            self.totalLatency += latency
+            self.maxLatency = max(self.maxLatency, latency)
+
+    def getStats(self):
+        """
+        Returns a dictionary describing the last run of forEachTile:
+        the number of tiles and bytes written, the elapsed seconds, the
+        resulting tiles and bytes per second, and the mean and maximum
+        latency in seconds of the setTile calls.
+        """
+        with self._statsLock:
+            elapsed = self.elapsed
+            count = self.tileCount
+            rv = {"tiles": count,
+                  "bytes": self.byteCount,
+                  "seconds": elapsed,
+                  "tilesPerSecond": 0.0,
+                  "bytesPerSecond": 0.0,
+                  "meanLatency": 0.0,
+                  "maxLatency": self.maxLatency}
+            if elapsed > 0:
+                rv["tilesPerSecond"] = count / elapsed
+                rv["bytesPerSecond"] = self.byteCount / elapsed
+            if count > 0:
+                rv["meanLatency"] = self.totalLatency / count
+            return rv
+
+    def newData(self, rps, minmax):
+        return AsyncRPSTileData(self, rps, minmax, self.inflight)
+
+    def runTiles(self, data, tiles, iteration):
+        from Queue import Queue
+
+        self._resetStats()
+        start = time.time()
+        work = Queue(self.workers * 2)
+        errors = []
+
+        def worker():
+            while True:
+                item = work.get()
+                if item is None:
+                    return
+                if errors:
+                    continue
+                try:
+                    iteration.run(data, *item)
+                except Exception, e:
+                    errors.append(e)
+
+        threads = [threading.Thread(target=worker)
+                   for i in range(max(1, self.workers))]
+        for thread in threads:
+            thread.start()
+        tileCount = 0
+        try:
+            for z, c, t, x, y, w, h in tiles:
+                if errors:
+                    break
+                work.put((z, c, t, x, y, w, h, tileCount))
+                tileCount += 1
+        finally:
+            for thread in threads:
+                work.put(None)
+            for thread in threads:
+                thread.join()
+        if errors:
+            raise errors[0]
+        data.flush()
+        self.elapsed = time.time() - start
+        return tileCount
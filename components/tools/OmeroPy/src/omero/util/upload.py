@@ -0,0 +1,527 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+#
+# Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Upload of the used files of an import to the uploaders of an
+omero.grid.ImportProcess, ready for verifyUpload.
+
+Rather than writing one block of one file at a time, several files are
+uploaded at once, each with several block writes awaiting a reply, while
+each file's checksum is computed on a thread of its own from the blocks
+already read. Over high latency links the time taken is then bound by the
+bandwidth rather than by the number of round trips.
+
+The size of each block can be left to :class:`AdaptiveBlockSize`, which
+is also used by the upload and download methods of omero.client.
+
+:class:`ResumableFilesetUploader` keeps a journal of the blocks written so
+that an interrupted upload can carry on from where it stopped.
+"""
+
+import hashlib
+import json
+import logging
+import os
+import threading
+import time
+import zlib
+
+from Queue import Queue, Empty
+
+import omero.constants
+
+from omero.util import checksum
+
+logger = logging.getLogger("omero.util.upload")
+
+
+class AdaptiveBlockSize(object):
+
+    """
+    Chooses the size of the blocks of a transfer from the throughput and
+    round trip time measured for the blocks already sent or received.
+
+    Each block is aimed to take about target seconds, so that blocks grow
+    on fast links, where the round trip would otherwise dominate, and
+    shrink on slow ones before they reach the Ice timeouts. The size
+    changes by at most a factor of two per block and stays within the
+    limits given. When several blocks are awaiting a reply at once, the
+    time each one takes includes the others, so the size settles such that
+    all of them together take about target seconds.
+    """
+
+    def __init__(self, size=omero.constants.DEFAULTBLOCKSIZE,
+                 minimum=64 * 1024, maximum=64 * 1024 * 1024, target=1.0,
+                 smoothing=0.3):
+        """
+        :param size:        Initial block size in bytes
+        :param minimum:     Smallest block size in bytes
+        :param maximum:     Largest block size in bytes, which must be
+                            below Ice.MessageSizeMax
+        :param target:      Seconds which each block should take
+        :param smoothing:   Weight of the latest block in the moving
+                            averages of throughput and round trip time
+        """
+        self.minimum = minimum
+        self.maximum = max(minimum, maximum)
+        self.size = min(max(size, self.minimum), self.maximum)
+        self.target = target
+        self.smoothing = smoothing
+        self.throughput = None
+        self.rtt = None
+        self.blocks = 0
+        self.bytes = 0
+        self._lock = threading.Lock()
+
+    def record(self, size, elapsed):
+        """
+        Records a block of size bytes which took elapsed seconds, from the
+        request to the reply, and adjusts the block size.
+        """
+        if size <= 0:
+            return
+        elapsed = max(elapsed, 1e-6)
+        rate = size / elapsed
+        with self._lock:
+            self.blocks += 1
+            self.bytes += size
+            if self.throughput is None:
+                self.throughput = rate
+                self.rtt = elapsed
+            else:
+                w = self.smoothing
+                self.throughput = w * rate + (1 - w) * self.throughput
+                self.rtt = w * elapsed + (1 - w) * self.rtt
+            wanted = self.throughput * self.target
+            wanted = min(max(wanted, self.size / 2), self.size * 2)
+            self.size = int(min(max(wanted, self.minimum), self.maximum))
+
+    def getStats(self):
+        """
+        Returns a dictionary of the current block size, the averaged
+        throughput in bytes per second and round trip time in seconds,
+        which are None until a block has been recorded, and the number of
+        blocks and bytes recorded.
+        """
+        with self._lock:
+            return {"size": self.size,
+                    "throughput": self.throughput,
+                    "rtt": self.rtt,
+                    "blocks": self.blocks,
+                    "bytes": self.bytes,
+                    "minimum": self.minimum,
+                    "maximum": self.maximum}
+
+
+def _digest(digest, blocks):
+    while True:
+        block = blocks.get()
+        if block is None:
+            break
+        digest.update(block)
+
+
+class FilesetUploader(object):
+
+    """
+    Uploads files to an import process, returning the checksums to pass to
+    ImportProcessPrx.verifyUpload, in the order of the files::
+
+        uploader = FilesetUploader(proc, paths)
+        handle = proc.verifyUpload(uploader.upload())
+
+    The number of bytes written and the time taken are recorded for
+    reporting, see :meth:`getStats`.
+    """
+
+    def __init__(self, proc, files, blockSize=omero.constants.DEFAULTBLOCKSIZE,
+                 filesInFlight=2, blocksInFlight=4, hasher=hashlib.sha1,
+                 progress=None, hashWorkers=4):
+        """
+        :param proc:            ImportProcessPrx of the fileset
+        :param files:           List of paths, in the order of the fileset
+                                entries
+        :param blockSize:       Size of each write, see
+                                omero.client.getDefaultBlockSize, or an
+                                AdaptiveBlockSize to choose it, see
+                                omero.client.getBlockSizer
+        :param filesInFlight:   Number of files uploaded at once
+        :param blocksInFlight:  Number of writes awaiting a reply per file
+        :param hasher:          Returns a new hashlib style object for the
+                                fileset's checksum algorithm, SHA1-160 by
+                                default, see omero.util.checksum
+        :param progress:        Optional, called with (index, bytes) after
+                                each block of a file is written
+        :param hashWorkers:     Number of threads shared by the checksums of
+                                all the files, for algorithms which hash on
+                                threads such as SHA1-160-Tree
+        """
+        self.proc = proc
+        self.files = list(files)
+        self.blockSize = blockSize
+        self.filesInFlight = filesInFlight
+        self.blocksInFlight = blocksInFlight
+        self.hasher = hasher
+        self.progress = progress
+        self.bytes = 0
+        self._hashPool = checksum.HashPool(hashWorkers)
+        self.elapsed = 0.0
+        self._lock = threading.Lock()
+
+    def upload(self):
+        """
+        Uploads every file and returns the list of their checksums. Raises
+        the first error met once the other files have finished.
+        """
+        work = Queue()
+        for index, path in enumerate(self.files):
+            work.put((index, path))
+        hashes = [None] * len(self.files)
+        errors = []
+
+        def run():
+            while not errors:
+                try:
+                    index, path = work.get_nowait()
+                except Empty:
+                    break
+                try:
+                    hashes[index] = self.uploadFile(index, path)
+                except Exception, e:
+                    logger.error("Failed to upload %s", path, exc_info=True)
+                    errors.append(e)
+
+        start = time.time()
+        threads = [threading.Thread(target=run) for i in
+                   range(max(1, min(self.filesInFlight, len(self.files))))]
+        try:
+            for thread in threads:
+                thread.start()
+            for thread in threads:
+                thread.join()
+        finally:
+            self._hashPool.close()
+        self.elapsed += time.time() - start
+        if errors:
+            raise errors[0]
+        return hashes
+
+    def uploadFile(self, index, path):
+        """
+        Uploads a single file to the uploader of the given index, with up
+        to blocksInFlight asynchronous writes, and returns its checksum.
+        """
+        rfs = self.proc.getUploader(index)
+        digest = None
+        try:
+            digest = self._hashPool.share(self.hasher())
+            blocks = Queue(self.blocksInFlight)
+            hasher = threading.Thread(target=_digest, args=(digest, blocks))
+            hasher.start()
+            slots = threading.BoundedSemaphore(self.blocksInFlight)
+            errors = []
+            try:
+                offset = self._start(index, path, rfs, blocks)
+                with open(path, "rb") as f:
+                    f.seek(offset)
+                    while not errors:
+                        block = f.read(self._nextBlockSize())
+                        if not block:
+                            break
+                        blocks.put(block)
+                        slots.acquire()
+                        self._write(rfs, block, offset, index, slots, errors)
+                        offset += len(block)
+            finally:
+                for i in range(self.blocksInFlight):
+                    slots.acquire()
+                blocks.put(None)
+                hasher.join()
+            if errors:
+                raise errors[0]
+            hash = digest.hexdigest()
+            digest = None
+            return self._finish(index, path, rfs, hash)
+        finally:
+            if digest is not None:
+                # Abandoned, so e.g. the threads of a TreeHash are stopped
+                checksum.close(digest)
+            rfs.close()
+
+    def _start(self, index, path, rfs, blocks):
+        """
+        Prepares the upload of a file, returning the offset to write from.
+        Any bytes before that offset must be put on the blocks queue for
+        the checksum.
+        """
+        rfs.write([], 0, 0)  # Touch, for empty files
+        return 0
+
+    def _written(self, index, offset, block):
+        """
+        Called from the Ice thread pool once a block has been written.
+        """
+        pass
+
+    def _finish(self, index, path, rfs, hash):
+        """
+        Called once every block of a file has been written, returning the
+        checksum passed to verifyUpload.
+        """
+        return hash
+
+    def _nextBlockSize(self):
+        if isinstance(self.blockSize, AdaptiveBlockSize):
+            return self.blockSize.size
+        return self.blockSize
+
+    def _write(self, rfs, block, offset, index, slots, errors):
+        size = len(block)
+        start = time.time()
+
+        def response():
+            try:
+                if isinstance(self.blockSize, AdaptiveBlockSize):
+                    self.blockSize.record(size, time.time() - start)
+                with self._lock:
+                    self.bytes += size
+                self._written(index, offset, block)
+                if self.progress is not None:
+                    self.progress(index, size)
+            except Exception, e:
+                errors.append(e)
+            finally:
+                slots.release()
+
+        def exception(e):
+            errors.append(e)
+            slots.release()
+
+        try:
+            rfs.begin_write(block, offset, size,
+                            _response=response, _ex=exception)
+        except:
+            slots.release()
+            raise
+
+    def getStats(self):
+        """
+        Returns a dictionary of the bytes written, the seconds spent in
+        :meth:`upload` and the throughput in bytes per second.
+        """
+        with self._lock:
+            rate = self.elapsed and self.bytes / self.elapsed or 0.0
+            return {"bytes": self.bytes,
+                    "elapsed": self.elapsed,
+                    "throughput": rate}
+
+
+class ResumableFilesetUploader(FilesetUploader):
+
+    """
+    FilesetUploader which appends every block written, with its CRC-32, to
+    a local journal, so that an upload which was interrupted, for instance
+    by a lost connection, can be resumed rather than started over::
+
+        proc = ResumableFilesetUploader.reopen(client, journal)
+        if proc is None:
+            proc = repo.importFileset(fileset, settings)
+        uploader = ResumableFilesetUploader(
+            proc, paths, journal, repo=repo, session=client.getSessionId())
+        handle = proc.verifyUpload(uploader.upload())
+        uploader.remove()
+
+    The journal records the UUID of the session which owns the import
+    process, so that a new client, for instance after the uploading
+    process was restarted, can rejoin that session and carry on. It also
+    records the original file ID of each fileset entry, so that the size
+    already written can be asked of the ManagedRepository, from any
+    session, rather than of the import process.
+
+    On resuming, only the blocks after both the size held by the server
+    and the last of the blocks recorded without a gap are sent again. The
+    blocks already sent are read back locally to compute the checksum of
+    the whole file, and their CRC-32 compared with the journal, so that
+    any change to the local file since is sent again too. Files recorded
+    as complete whose full size is held and which were not modified since
+    are not read at all.
+
+    The import process lives in its session, so the upload can only be
+    resumed while that session has not been closed or timed out. The
+    journal is specific to one import process: if it was written for
+    another one, it is started afresh.
+    """
+
+    def __init__(self, proc, files, journal, repo=None, session=None,
+                 **kwargs):
+        """
+        :param journal:     Path of the journal file
+        :param repo:        Optional ManagedRepositoryPrx of the import,
+                            asked for the sizes already written
+        :param session:     UUID of the session of the import process,
+                            recorded for :meth:`reopen`
+        Other arguments as for :class:`FilesetUploader`.
+        """
+        super(ResumableFilesetUploader, self).__init__(proc, files, **kwargs)
+        self.journal = journal
+        self.repo = repo
+        self.resumed = 0
+        self._journalLock = threading.Lock()
+        identity = proc.ice_getIdentity()
+        identity = [identity.category, identity.name]
+        header, self._blocks, self._hashes, self._ids = self._read(journal)
+        if header.get("identity") != identity or \
+                header.get("files") != self.files:
+            self._blocks, self._hashes, self._ids = {}, {}, {}
+            with open(journal, "w") as f:
+                json.dump({"session": session, "identity": identity,
+                           "proxy": str(proc), "files": self.files}, f)
+                f.write("\n")
+        self._log = open(journal, "a")
+
+    @staticmethod
+    def _read(journal):
+        header, blocks, hashes, ids = {}, {}, {}, {}
+        if not os.path.exists(journal):
+            return header, blocks, hashes, ids
+        with open(journal, "r") as f:
+            for i, line in enumerate(f):
+                try:
+                    entry = json.loads(line)
+                except ValueError:
+                    break  # Cut short by a crash
+                if i == 0:
+                    header = entry
+                elif "hash" in entry:
+                    hashes[entry["file"]] = (entry["hash"], entry["mtime"])
+                elif "id" in entry:
+                    ids[entry["file"]] = entry["id"]
+                else:
+                    blocks.setdefault(entry["file"], {})[entry["offset"]] = \
+                        (entry["length"], entry["crc"])
+        return header, blocks, hashes, ids
+
+    @staticmethod
+    def reopen(client, journal):
+        """
+        Returns the ImportProcessPrx recorded in the journal if it is still
+        alive on the server, or None. A client without a session joins the
+        session recorded in the journal; otherwise its session must be the
+        one of the import process.
+        """
+        import omero.grid
+        header = ResumableFilesetUploader._read(journal)[0]
+        if "proxy" not in header:
+            return None
+        try:
+            if client.getSession(False) is None and header.get("session"):
+                client.joinSession(header["session"])
+            prx = client.getCommunicator().stringToProxy(header["proxy"])
+            return omero.grid.ImportProcessPrx.checkedCast(prx)
+        except Exception:
+            logger.info("Cannot resume %s", header["proxy"], exc_info=True)
+            return None
+
+    def _append(self, entry):
+        with self._journalLock:
+            self._log.write(json.dumps(entry) + "\n")
+            self._log.flush()
+            os.fsync(self._log.fileno())
+
+    def _held(self, index):
+        """
+        Returns the number of bytes the server holds for the given file,
+        from the ManagedRepository if the file's ID was recorded, else from
+        the file's uploader.
+        """
+        id = self._ids.get(index)
+        if self.repo is not None and id is not None:
+            rfs = self.repo.fileById(id)
+        else:
+            rfs = self.proc.getUploader(index)
+        try:
+            return rfs.size()
+        finally:
+            rfs.close()
+
+    def uploadFile(self, index, path):
+        hash, mtime = self._hashes.get(index, (None, None))
+        if hash is not None and mtime == os.path.getmtime(path) and \
+                self._held(index) == os.path.getsize(path):
+            return hash
+        return super(ResumableFilesetUploader, self).uploadFile(index, path)
+
+    def _start(self, index, path, rfs, blocks):
+        super(ResumableFilesetUploader, self)._start(index, path, rfs, blocks)
+        if index not in self._ids:
+            id = rfs.getFileId()
+            if id is not None:
+                self._ids[index] = id.val
+                self._append({"file": index, "id": id.val})
+        recorded = self._blocks.get(index, {})
+        held = recorded and rfs.size() or 0
+        offset = 0
+        with open(path, "rb") as f:
+            while offset in recorded:
+                length, crc = recorded[offset]
+                if offset + length > held:
+                    break
+                block = f.read(length)
+                if len(block) != length or zlib.crc32(block) != crc:
+                    break
+                blocks.put(block)
+                offset += length
+        if offset:
+            logger.info("Resuming %s at %s bytes", path, offset)
+            with self._lock:
+                self.resumed += offset
+        return offset
+
+    def _written(self, index, offset, block):
+        self._append({"file": index, "offset": offset,
+                      "length": len(block), "crc": zlib.crc32(block)})
+
+    def _finish(self, index, path, rfs, hash):
+        size = os.path.getsize(path)
+        if rfs.size() > size:
+            rfs.truncate(size)  # Left from a longer version of the file
+        self._append({"file": index, "hash": hash,
+                      "mtime": os.path.getmtime(path)})
+        return hash
+
+    def close(self):
+        """Closes the journal, which is kept for a later resume."""
+        self._log.close()
+
+    def remove(self):
+        """
+        Closes and deletes the journal, once the upload has been verified.
+        """
+        self.close()
+        os.remove(self.journal)
+
+    def getStats(self):
+        """
+        As :meth:`FilesetUploader.getStats` with the number of bytes which
+        were not sent again as "resumed".
+        """
+        rv = super(ResumableFilesetUploader, self).getStats()
+        rv["resumed"] = self.resumed
+        return rv
@@ -17,6 +17,8 @@
 import pytest
 from cStringIO import StringIO
 import omero
+from omero.gateway.utils import PlaneCache
+from omero.gateway.utils import ThumbnailCache
 
 try:
     from PIL import Image  # see ticket:2597
@@ -100,6 +102,74 @@ class TestImage (object):
                 image_ids=[badimg_id])[badimg_id]
         # Big image (4k x 4k and up) thumb
 
+    def testStreamThumbnailSet(self, author_testimg_bad,
+                               author_testimg_big):
+        img_ids = [self.image.id, author_testimg_big.id,
+                   author_testimg_bad.id]
+        conn = self.image._conn
+        streamed = []
+        thumbs = conn.streamThumbnailSet(
+            img_ids, lambda i, t: streamed.append((i, t)), workers=2,
+            chunkSize=1)
+        assert sorted(thumbs.keys()) == sorted(img_ids[:2])
+        assert sorted(streamed) == sorted(thumbs.items())
+        for thumb in thumbs.values():
+            thumb = Image.open(StringIO(thumb))  # Raises if invalid
+            thumb.verify()  # Raises if invalid
+            assert thumb.size == (64, 64)
+        # Now stored on the server, so fetched in a single request
+        assert sorted(conn.streamThumbnailSet(img_ids, None)) == \
+            sorted(thumbs)
+        for v in conn.c.getSession().activeServices():
+            assert 'ThumbnailStore' not in v, 'Leaked thumbnail store!'
+
+    def testThumbnailCache(self, tmpdir, author_testimg_big):
+        img_ids = [self.image.id, author_testimg_big.id]
+        conn = self.image._conn
+        cache = ThumbnailCache(str(tmpdir))
+        thumbs = conn.getThumbnailSet(img_ids, cache=cache)
+        assert sorted(thumbs.keys()) == sorted(img_ids)
+        assert cache.misses == 2
+        assert conn.getThumbnailSet(img_ids, cache=cache) == thumbs
+        assert cache.hits == 2
+        streamed = {}
+        assert conn.streamThumbnailSet(
+            img_ids, streamed.__setitem__, cache=cache) == thumbs
+        assert streamed == thumbs
+        assert cache.hits == 4
+        # Saving new settings changes the version, so it is fetched again
+        active = [i + 1 for i, ch in enumerate(self.image.getChannels())
+                  if ch.isActive()]
+        try:
+            self.image.setActiveChannels([1])
+            self.image.saveDefaults()
+            conn.getThumbnailSet(img_ids, cache=cache)
+            assert cache.hits == 5
+            assert cache.misses == 3
+        finally:
+            # The image is shared with the other tests
+            self.image.setActiveChannels(active)
+            self.image.saveDefaults()
+            self.image._closeRE()
+
+    def testGetThumbnailsByPixelsIds(self, author_testimg_big):
+        conn = self.image._conn
+        pix_ids = [self.image.getPrimaryPixels().id,
+                   author_testimg_big.getPrimaryPixels().id]
+        thumbs = conn.getThumbnailsByPixelsIds(pix_ids + [-1L], workers=2)
+        assert sorted(thumbs.keys()) == sorted(pix_ids)
+        for thumb in thumbs.values():
+            thumb = Image.open(StringIO(thumb))  # Raises if invalid
+            thumb.verify()  # Raises if invalid
+            assert thumb.size == (64, 64)
+        streamed = []
+        conn.getThumbnailsByPixelsIds(
+            pix_ids[:1], callback=lambda p, t: streamed.append(p))
+        assert streamed == pix_ids[:1]
+        assert conn.getThumbnailsByPixelsIds([]) == {}
+        for v in conn.c.getSession().activeServices():
+            assert 'ThumbnailStore' not in v, 'Leaked thumbnail store!'
+
     def testRenderingModels(self):
         # default is color model
         cimg = self.image.renderJpeg(0, 0)
@@ -380,6 +450,56 @@ class TestImage (object):
             gatewaywrapper.loginAsAdmin()
             admin = gatewaywrapper.gateway.getAdminService()
 
+    def testRenderJpegs(self):
+        zts = [(z, 0) for z in range(self.image.getSizeZ())]
+        frames = list(self.image.renderJpegs(zts, readAhead=2))
+        assert [(z, t) for z, t, jpeg in frames] == zts
+        for z, t, jpeg in frames:
+            img_file = Image.open(StringIO(jpeg))  # Raises if invalid
+            img_file.verify()  # Raises if invalid
+            assert img_file.format == 'JPEG'
+        assert frames[0][2] == self.image.renderJpeg(0, 0)
+
+    def testRenderJpegsProjected(self):
+        self.image.setProjection('intmax')
+        frames = list(self.image.renderJpegs())
+        assert [t for z, t, jpeg in frames] == range(self.image.getSizeT())
+        assert frames[0][2] == self.image.renderJpeg(None, 0)
+        # A single frame per T, whatever the Z indexes
+        zts = [(z, 0) for z in range(self.image.getSizeZ())]
+        assert len(list(self.image.renderJpegs(zts))) == 1
+
+    def testRenderProjectedJpegs(self):
+        self.image.setProjection('intmax')
+        cache = PlaneCache()
+        frames = list(self.image.renderProjectedJpegs(
+            0, steps=[2, 1], cache=cache))
+        assert [stepping for stepping, jpeg in frames] == [2, 1]
+        for stepping, jpeg in frames:
+            img_file = Image.open(StringIO(jpeg))  # Raises if invalid
+            img_file.verify()  # Raises if invalid
+            assert img_file.format == 'JPEG'
+        assert frames[-1][1] == self.image.renderJpeg(None, 0)
+        assert len(cache) == 2
+        # The full projection is cached, so nothing is rendered again
+        assert list(self.image.renderProjectedJpegs(
+            0, steps=[2, 1], cache=cache)) == frames[-1:]
+        assert cache.hits == 1
+
+    def testRenderingSettingsHash(self):
+        settings = self.image.getRenderingSettingsHash()
+        assert settings == self.image.getRenderingSettingsHash()
+        self.image.setGreyscaleRenderingModel()
+        greyscale = self.image.getRenderingSettingsHash()
+        assert greyscale != settings
+        self.image.setColorRenderingModel()
+        assert self.image.getRenderingSettingsHash() == settings
+        self.image.setActiveChannels([1], [[0, 10]])
+        channels = self.image.getRenderingSettingsHash()
+        assert channels != settings
+        self.image.setProjection('intmax')
+        assert self.image.getRenderingSettingsHash() != channels
+
     def testRenderJpegRegion(self, gatewaywrapper):
         width = 10
         height = 10
@@ -242,6 +242,21 @@ class TestPixels (object):
             assert not e.close
             assert found == 1
 
+    def testGetPlanesEarlyExit(self):
+        """
+        Tests that the read-ahead calls are collected and the store closed
+        when the caller stops iterating early.
+        """
+        pixels = self.image.getPrimaryPixels()
+        store = MockRawPixelsStore(pixels, good_calls=3)
+        pixels._prepareRawPixelsStore = lambda: store
+        planes = pixels.getPlanes(((0, 0, 0), (0, 1, 0), (0, 0, 1)),
+                                  readAhead=2)
+        planes.next()
+        planes.close()
+        assert store.closed
+        assert store.pending == 0
+
     def testGetHistogram(self, gatewaywrapper):
         """
         Tests we get data of the right size and close rawPixelsStore
@@ -264,6 +279,33 @@ class TestPixels (object):
         services = gatewaywrapper.gateway.c.getStatefulServices()
         assert len(services) == current_count
 
+    def testProjectStacks(self):
+        import numpy
+        pixels = self.image.getPrimaryPixels()
+        sizeZ = pixels.getSizeZ()
+        zctList = [(z, 0, 0) for z in range(sizeZ)]
+        planes = [p.astype(numpy.float64) for p in pixels.getPlanes(zctList)]
+        projected = pixels.projectStacks('intmax', channels=[0],
+                                         timepoints=[0], workers=2)
+        assert projected.keys() == [(0, 0)]
+        assert (projected[(0, 0)] == numpy.amax(planes, axis=0)).all()
+        projected = pixels.projectStacks('intsum', channels=[0],
+                                         timepoints=[0], readAhead=0)
+        assert (projected[(0, 0)] == numpy.sum(planes, axis=0)).all()
+        projected = pixels.projectStacks('intmean', zEnd=sizeZ - 1,
+                                         stepping=2)
+        assert len(projected) == pixels.getSizeC() * pixels.getSizeT()
+        expected = numpy.mean(planes[::2], axis=0)
+        assert numpy.allclose(projected[(0, 0)], expected)
+
+    @pytest.mark.parametrize("zStart,zEnd", [(-1, 0), (1, 0), (0, 'sizeZ')])
+    def testProjectStacksInvalidRange(self, zStart, zEnd):
+        pixels = self.image.getPrimaryPixels()
+        if zEnd == 'sizeZ':
+            zEnd = pixels.getSizeZ()
+        with pytest.raises(ValueError):
+            pixels.projectStacks('intmax', zStart=zStart, zEnd=zEnd)
+
 
 class MockRawPixelsStore(object):
 
@@ -275,6 +317,8 @@ class MockRawPixelsStore(object):
         self.pixels = pixels
         self.good_calls = good_calls
         self.close_fails = close_fails
+        self.pending = 0
+        self.closed = False
 
     def getPlane(self, *args):
         if self.good_calls == 0:
@@ -285,7 +329,22 @@ class MockRawPixelsStore(object):
             self.good_calls -= 1
             return "0"*(2*self.pixels.getSizeX()*self.pixels.getSizeY())
 
+    def begin_getPlane(self, *args):
+        self.pending += 1
+        try:
+            return self.getPlane(*args), None
+        except Exception, e:
+            return None, e
+
+    def end_getPlane(self, result):
+        self.pending -= 1
+        plane, e = result
+        if e is not None:
+            raise e
+        return plane
+
     def close(self, *args):
+        self.closed = True
         if self.close_fails:
             e = Exception("MOCK CLOSE EXCEPTION")
             e.close = True
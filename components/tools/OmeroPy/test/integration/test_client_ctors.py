@@ -179,6 +179,24 @@ class TestClientConstructors(ITest):
         finally:
             c.__del__()
 
+    def testBlockSizer(self):
+        c = omero.client("localhost", ["--omero.block_size.max=2000000",
+                                       "--omero.block_size.min=1000"])
+        try:
+            sizer = c.getBlockSizer()
+            assert sizer is c.getBlockSizer()
+            stats = sizer.getStats()
+            assert 2000000 == stats["size"] == stats["maximum"]
+            assert 1000 == stats["minimum"]
+            assert stats["throughput"] is None
+        finally:
+            c.__del__()
+        c = omero.client("localhost", ["--Ice.MessageSizeMax=1024"])
+        try:
+            assert 512 * 1024 == c.getBlockSizer().maximum
+        finally:
+            c.__del__()
+
     def testPythonCtorRepair(self):
         # c = omero.client(self.host, omero.constants.GLACIER2PORT)
         c = omero.client(self.host, self.port)
@@ -17,6 +17,7 @@ __import__("sys")
 
 from omero.util.tiles import TileLoopIteration
 from omero.util.tiles import RPSTileLoop
+from omero.util.tiles import ParallelRPSTileLoop
 from binascii import hexlify as hex
 
 
@@ -71,6 +72,52 @@ class TestRPS(ITest):
         pix = self.query.get("Pixels", pix.id.val)
         self.check_pix(pix)
 
+    def testParallelForEachTile(self):
+        pix = self.create_pixels(x=600, y=600, z=2, c=1, t=1)
+
+        class Iteration(TileLoopIteration):
+
+            def run(self, data, z, c, t, x, y,
+                    tileWidth, tileHeight, tileCount):
+                data.setTile(
+                    [5] * tileWidth * tileHeight,
+                    z, c, t, x, y, tileWidth, tileHeight)
+
+        loop = ParallelRPSTileLoop(self.client.getSession(), pix,
+                                   workers=3, inflight=4)
+        assert loop.forEachTile(256, 256, Iteration()) == 18
+        stats = loop.getStats()
+        assert stats["tiles"] == 18
+        assert stats["bytes"] == 600 * 600 * 2
+        assert stats["maxLatency"] >= stats["meanLatency"] > 0
+        pix = self.query.get("Pixels", pix.id.val)
+        self.check_pix(pix)
+
+    def testForEachTileStatsInfo(self):
+        ptype = self.query.findByQuery(
+            "from PixelsType as p where p.value='uint8'", None)
+        iid = self.client.sf.getPixelsService().createImage(
+            300, 300, 1, 1, [0, 1], ptype, "testForEachTileStatsInfo", "")
+        pix = self.query.findByQuery(
+            "select p from Pixels p where p.image.id = %s" % iid.val, None)
+
+        class Iteration(TileLoopIteration):
+
+            def run(self, data, z, c, t, x, y,
+                    tileWidth, tileHeight, tileCount):
+                data.setTile(
+                    [c * 10 + tileCount % 4] * tileWidth * tileHeight,
+                    z, c, t, x, y, tileWidth, tileHeight)
+
+        loop = RPSTileLoop(self.client.getSession(), pix, stats=True)
+        loop.forEachTile(256, 256, Iteration())
+        pix = self.client.sf.getPixelsService().retrievePixDescription(
+            pix.id.val)
+        for c, channel in enumerate(pix.copyChannels()):
+            statsInfo = channel.getStatsInfo()
+            assert statsInfo.getGlobalMin().val == c * 10
+            assert statsInfo.getGlobalMax().val == c * 10 + 3
+
     def testBigPlane(self):
         pix = self.create_pixels(x=4000, y=4000, z=1, t=1, c=1)
         rps = self.client.sf.createRawPixelsStore()
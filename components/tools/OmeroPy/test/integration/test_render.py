@@ -26,7 +26,9 @@
 
 import omero
 import logging
+import pytest
 from omero.testlib import ITest
+from omero.util import rendering
 import io
 
 try:
@@ -38,7 +40,7 @@ except:  # pragma: nocover
         logging.error('No Pillow installed')
 
 
-from numpy import asarray, array_equal
+from numpy import asarray, array_equal, frombuffer, int32, array
 
 
 class TestRendering(ITest):
@@ -107,3 +109,82 @@ class TestRendering(ITest):
 
         # compare the values of the arrays
         assert array_equal(cropped, region_array)
+
+    @pytest.mark.parametrize("family,coefficient,inverted", [
+        ("linear", 1.0, False),
+        ("polynomial", 0.5, False),
+        ("polynomial", 2.0, False),
+        ("logarithmic", 1.0, False),
+        ("linear", 1.0, True),
+        ("polynomial", 2.0, True)])
+    def test_render_as_packed_int(self, family, coefficient, inverted):
+        """
+        Compares omero.util.rendering.render_as_packed_int with
+        renderAsPackedInt from the rendering engine for the same plane and
+        settings.
+        """
+        session = self.root.sf
+        size_x = 64
+        size_y = 48
+        size_c = 2
+        image = self.create_test_image(size_x, size_y, 1, size_c, 1)
+        pixels_id = image.getPrimaryPixels().getId().getValue()
+
+        pixels_service = session.getPixelsService()
+        families = dict((f.getValue().getValue(), f) for f in
+                        pixels_service.getAllEnumerations("Family"))
+        models = dict((m.getValue().getValue(), m) for m in
+                      pixels_service.getAllEnumerations("RenderingModel"))
+
+        rendering_engine = session.createRenderingEngine()
+        rendering_engine.lookupPixels(pixels_id)
+        if not rendering_engine.lookupRenderingDef(pixels_id):
+            rendering_engine.resetDefaultSettings(save=True)
+        rendering_engine.lookupRenderingDef(pixels_id)
+        rendering_engine.load()
+        rendering_engine.setModel(models["rgb"])
+
+        windows = ((2, 50, (255, 0, 0, 255)), (0, 63, (0, 255, 0, 255)))
+        channels = []
+        for c, (start, end, rgba) in enumerate(windows):
+            rendering_engine.setActive(c, True)
+            rendering_engine.setChannelWindow(c, start, end)
+            rendering_engine.setRGBA(c, *rgba)
+            rendering_engine.setQuantizationMap(
+                c, families[family], coefficient, False)
+            if inverted:
+                rendering_engine.addCodomainMapToChannel(
+                    omero.romio.ReverseIntensityMapContext(), c)
+            channels.append({'start': start, 'end': end, 'rgba': rgba,
+                             'family': family, 'coefficient': coefficient,
+                             'inverted': inverted})
+
+        plane_def = omero.romio.PlaneDef()
+        plane_def.z = long(0)
+        plane_def.t = long(0)
+        expected = array(rendering_engine.renderAsPackedInt(plane_def),
+                         dtype=int32).reshape(size_y, size_x)
+        rendering_engine.close()
+
+        raw_pixels_store = session.createRawPixelsStore()
+        try:
+            raw_pixels_store.setPixelsId(pixels_id, True)
+            planes = [frombuffer(raw_pixels_store.getPlane(0, c, 0),
+                                 dtype=">i2").reshape(size_y, size_x)
+                      for c in range(size_c)]
+        finally:
+            raw_pixels_store.close()
+
+        rv = rendering.render_as_packed_int(planes, channels, "int16")
+        assert array_equal(rv.astype(int32), expected)
+
+    def test_render_as_packed_int_noise_reduction(self):
+        """
+        The rendering engine applies noise reduction which the client side
+        rendering does not implement, so it must refuse rather than differ.
+        """
+        planes = [array([[0, 10]], dtype=">i2")]
+        channels = [{'start': 0, 'end': 10, 'rgba': (255, 255, 255, 255),
+                     'noiseReduction': True}]
+        with pytest.raises(ValueError):
+            rendering.render_as_packed_int(planes, channels, "int16")
@@ -18,7 +18,12 @@ from omero import CmdError
 from omero.callbacks import CmdCallbackI
 from omero.gateway import BlitzGateway
 from omero.rtypes import unwrap
+from omero.util import checksum
+from omero.util import import_candidates
+from omero.util.bulk_import import BulkImporter
 from omero.util.temp_files import create_path
+from omero.util.upload import FilesetUploader
+from omero.util.upload import ResumableFilesetUploader
 
 
 class TestRepository(AbstractRepoTest):
@@ -289,6 +294,119 @@ class TestPythonImporter(AbstractRepoTest):
         proc = mrepo.importPaths(paths)
         self.assert_import(client, proc, folder)
 
+    def testPipelinedUpload(self):
+        client = self.new_client()
+        mrepo = self.get_managed_repo(client)
+        folder = self.create_test_dir()
+        paths = folder.files()
+
+        proc = mrepo.importPaths(paths)
+        try:
+            uploader = FilesetUploader(proc, paths, blockSize=1000)
+            hashes = uploader.upload()
+            assert hashes == [client.sha1(x) for x in paths]
+            handle = proc.verifyUpload(hashes)
+            rsp = self.assert_passes(CmdCallbackI(client, handle))
+            assert 1 == len(rsp.pixels)
+        finally:
+            proc.close()
+
+    def testResumableUpload(self, tmpdir):
+        client = self.new_client()
+        mrepo = self.get_managed_repo(client)
+        folder = self.create_test_dir()
+        paths = folder.files()
+        journal = str(tmpdir.join("journal"))
+
+        assert ResumableFilesetUploader.reopen(client, journal) is None
+        proc = mrepo.importPaths(paths)
+        # As after a restart, with a new client joining the session
+        other = omero.client(self.root.getPropertyMap())
+        try:
+            ResumableFilesetUploader(
+                proc, paths, journal, repo=mrepo,
+                session=client.getSessionId()).upload()
+            proc = ResumableFilesetUploader.reopen(other, journal)
+            assert proc is not None
+            uploader = ResumableFilesetUploader(
+                proc, paths, journal, repo=self.get_managed_repo(other))
+            hashes = uploader.upload()
+            assert uploader.getStats()["bytes"] == 0
+            handle = proc.verifyUpload(hashes)
+            rsp = self.assert_passes(CmdCallbackI(other, handle))
+            assert 1 == len(rsp.pixels)
+            uploader.remove()
+        finally:
+            proc.close()
+            other.closeSession()
+
+    def testNegotiatedChecksum(self):
+        client = self.new_client()
+        mrepo = self.get_managed_repo(client)
+        folder = self.create_test_dir()
+        fileset = self.create_fileset(folder)
+        settings = self.create_settings()
+        settings.checksumAlgorithm = checksum.negotiate(mrepo)
+        name = settings.checksumAlgorithm.value.val
+        assert name in checksum.ALGORITHMS
+
+        proc = mrepo.importFileset(fileset, settings)
+        try:
+            uploader = FilesetUploader(proc, folder.files(),
+                                       hasher=checksum.get_hasher(name))
+            handle = proc.verifyUpload(uploader.upload())
+            rsp = self.assert_passes(CmdCallbackI(client, handle))
+            assert 1 == len(rsp.pixels)
+        finally:
+            proc.close()
+
+    def testBulkImport(self):
+        client = self.new_client()
+        importer = BulkImporter(client, uploads=1, imports=2, retries=1,
+                                delay=0)
+        for i in range(3):
+            importer.add(self.create_test_dir().files())
+        missing = importer.add([create_path().abspath() + ".missing"])
+        results = importer.run()
+        for rsp in results[:3]:
+            assert 1 == len(rsp.pixels)
+        assert isinstance(results[missing], IOError)
+        assert importer.attempts[missing] == 2
+        assert importer.getStats() == {
+            "filesets": 4, "deduplicated": 0, "retried": 1, "attempts": 5}
+
+    def testBulkImportDedupe(self):
+        client = self.new_client()
+        folder = self.create_test_dir()
+        first = BulkImporter(client).run([folder.files()])[0]
+        dataset = self.make_dataset(client=client)
+        importer = BulkImporter(client, dedupe=True, target=dataset)
+        second = importer.run([folder.files()])[0]
+        assert [p.id.val for p in first.pixels] == \
+            [p.id.val for p in second.pixels]
+        assert importer.getStats()["deduplicated"] == 1
+        params = omero.sys.ParametersI().addId(dataset.id.val)
+        assert 1 == len(client.sf.getQueryService().findAllByQuery(
+            "select l from DatasetImageLink l where l.parent.id = :id",
+            params))
+        # A changed file is imported again
+        (folder / "a.fake").write_text("changed")
+        importer = BulkImporter(client, dedupe=True)
+        third = importer.run([folder.files()])[0]
+        assert importer.getStats()["deduplicated"] == 0
+        assert third.pixels[0].id.val != first.pixels[0].id.val
+
+    def testBulkImportScan(self):
+        client = self.new_client()
+        folder = create_path(folder=True)
+        for name in ("a.fake", "b.fake"):
+            (folder / name).touch()
+        importer = BulkImporter(client)
+        results = importer.run(import_candidates.scan(folder))
+        assert 2 == len(results)
+        for rsp in results:
+            assert 1 == len(rsp.pixels)
+
     def testReopenRawFileStoresPR2542(self):
         client = self.new_client()
         mrepo = self.get_managed_repo(client)
@@ -657,3 +657,32 @@ class TestThumbnailPerms(ITest):
 
         # Also should work without any group context
         tb.getThumbnailByLongestSideSet(rint(96), [pixelsId1, pixelsId2])
+
+    def testGetThumbnailsByPixelsIdsMultipleGroups(self):
+        """
+        Thumbnails of images in several groups are loaded in the context of
+        each group, with a single worker going through every group.
+        """
+        from omero.gateway import BlitzGateway
+        groups = [self.new_group(perms=perms)
+                  for perms in ('rw----', 'rwr---', 'rwra--')]
+        user = self.new_user(group=groups[0])
+        self.add_groups(user, groups[1:])
+        client = self.new_client(user=user, password=user.omeName.val)
+        pixels_ids = []
+        for group in groups:
+            self.set_context(client, group.id.val)
+            image = self.create_test_image(session=client.sf)
+            pixels_ids.append(image.getPrimaryPixels().id.val)
+
+        conn = BlitzGateway(client_obj=client)
+        streamed = []
+        failed = {}
+        thumbs = conn.getThumbnailsByPixelsIds(
+            pixels_ids, workers=1, failed=failed,
+            callback=lambda p, t: streamed.append(p))
+        assert failed == {}
+        assert sorted(thumbs) == sorted(pixels_ids)
+        assert sorted(streamed) == sorted(pixels_ids)
+        for v in client.getSession().activeServices():
+            assert 'ThumbnailStore' not in v, 'Leaked thumbnail store!'
@@ -12,6 +12,9 @@
 from omero.gateway.utils import ServiceOptsDict
 from omero.gateway.utils import toBoolean
 from omero.gateway.utils import propertiesToDict
+from omero.gateway.utils import PlaneCache
+from omero.gateway.utils import ThumbnailCache
+import os
 import pytest
 
 
@@ -304,3 +307,92 @@ class TestHelpers (object):
 
         assert dictprop['str']['1']['enabled'] == 't'
         assert dictprop['str']['2']['enabled'] == 'f'
+
+
+class TestPlaneCache (object):
+
+    def test_hit_and_miss(self):
+        cache = PlaneCache(maxBytes=10)
+        assert cache.get((1, 0, 0, 0, None)) is None
+        cache.put((1, 0, 0, 0, None), "abcd")
+        assert cache.get((1, 0, 0, 0, None)) == "abcd"
+        stats = cache.getStats()
+        assert stats["hits"] == 1
+        assert stats["misses"] == 1
+        assert stats["entries"] == 1
+        assert stats["bytes"] == 4
+
+    def test_evicts_least_recently_used(self):
+        cache = PlaneCache(maxBytes=8)
+        cache.put("a", "1234")
+        cache.put("b", "5678")
+        cache.get("a")
+        cache.put("c", "90")
+        assert "a" in cache
+        assert "b" not in cache
+        assert "c" in cache
+        assert cache.bytes == 6
+        assert cache.evictions == 1
+
+    def test_replace_and_oversized(self):
+        cache = PlaneCache(maxBytes=4)
+        cache.put("a", "12")
+        cache.put("a", "123")
+        assert cache.bytes == 3
+        cache.put("a", "12345")
+        assert "a" not in cache
+        assert cache.bytes == 0
+
+    def test_clear(self):
+        cache = PlaneCache(maxBytes=4)
+        cache.put("a", "12")
+        cache.clear()
+        assert len(cache) == 0
+        assert cache.bytes == 0
+
+
+class TestThumbnailCache (object):
+
+    def test_hit_and_miss(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), maxBytes=10)
+        assert cache.get(1, 64, "2-5") is None
+        cache.put(1, 64, "2-5", "abcd")
+        assert cache.get(1, 64, "2-5") == "abcd"
+        assert cache.get(1, 96, "2-5") is None
+        stats = cache.getStats()
+        assert stats["hits"] == 1
+        assert stats["misses"] == 2
+        assert stats["bytes"] == 4
+
+    def test_new_version_replaces(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), maxBytes=10)
+        cache.put(1, 64, "2-5", "abcd")
+        cache.put(1, 96, "2-5", "ab")
+        cache.put(1, 64, "2-6", "abc")
+        assert cache.get(1, 64, "2-5") is None
+        assert cache.get(1, 64, "2-6") == "abc"
+        assert cache.get(1, 96, "2-5") == "ab"
+        assert cache.bytes == 5
+
+    def test_evicts_least_recently_used(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir), maxBytes=8)
+        cache.put(1, 64, "v", "1234")
+        cache.put(2, 64, "v", "5678")
+        os.utime(cache._path(1, 64, "v"), (2, 2))
+        os.utime(cache._path(2, 64, "v"), (1, 1))
+        cache.put(3, 64, "v", "90")
+        assert cache.get(1, 64, "v") == "1234"
+        assert cache.get(2, 64, "v") is None
+        assert cache.get(3, 64, "v") == "90"
+        assert cache.bytes == 6
+        assert cache.evictions == 1
+
+    def test_persists(self, tmpdir):
+        cache = ThumbnailCache(str(tmpdir))
+        cache.put(1, 64, "v", "1234")
+        cache = ThumbnailCache(str(tmpdir))
+        assert cache.bytes == 4
+        assert cache.get(1, 64, "v") == "1234"
+        cache.clear()
+        assert cache.bytes == 0
+        assert cache.get(1, 64, "v") is None
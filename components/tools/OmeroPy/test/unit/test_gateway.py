@@ -25,9 +25,12 @@ Test of various things under omero.gateway
 """
 
 import Ice
+import omero
 import pytest
 
-from omero.gateway import BlitzGateway, ImageWrapper
+from omero.gateway import BlitzGateway, ImageWrapper, PixelsWrapper
+from omero.gateway import _coalesceTiles, _splitHypercube
+from omero.gateway import RenderingEnginePool, _PooledRenderingEngine
 from omero.model import ImageI, PixelsI, ExperimenterI, EventI
 from omero.rtypes import rstring, rtime, rlong, rint
 
@@ -118,3 +121,339 @@ class TestBlitzGatewayImageWrapper(object):
         data = wrapped_image.simpleMarshal(xtra={'tiled': True})
         self.assert_data(data)
         assert data['tiled'] is False
+
+    def test_merge_histogram(self):
+        histogram = dict()
+        ImageWrapper._mergeHistogram(histogram, {0: [1, 2], 1: [0, 5]})
+        ImageWrapper._mergeHistogram(histogram, {0: [3, 4]})
+        assert histogram == {0: [4, 6], 1: [0, 5]}
+
+
+class TestCoalesceTiles(object):
+
+    def test_rows_are_merged(self):
+        tiles = [(0, 0, 0, (x, y, 10, 10)) for y in (0, 10) for x in (0, 10)]
+        fetches = _coalesceTiles(tiles, 64, 64)
+        assert len(fetches) == 2
+        assert fetches[0] == ((0, 0, 0, (0, 0, 20, 10)),
+                              [(0, 0, 10, 10), (10, 0, 10, 10)])
+        assert fetches[1][0] == (0, 0, 0, (0, 10, 20, 10))
+
+    def test_max_size_is_respected(self):
+        tiles = [(0, 0, 0, (x, 0, 10, 10)) for x in (0, 10, 20)]
+        fetches = _coalesceTiles(tiles, 20, 64)
+        assert [f[0][3] for f in fetches] == [(0, 0, 20, 10), (20, 0, 10, 10)]
+
+    def test_overlapping_tiles_not_merged(self):
+        # Summed, the areas of these tiles would cover their bounding box,
+        # half of the last row of which was not requested
+        tiles = [(0, 0, 0, (0, 0, 10, 10))] * 2 + [(0, 0, 0, (10, 0, 10, 5))]
+        fetches = _coalesceTiles(tiles, 64, 64)
+        assert [f[0][3] for f in fetches] == [(0, 0, 10, 10),
+                                              (0, 0, 10, 10),
+                                              (10, 0, 10, 5)]
+
+    def test_planes_and_other_indexes_not_merged(self):
+        tiles = [(0, 0, 0, None), (0, 0, 0, [0, 0, 5, 5]),
+                 (1, 0, 0, (5, 0, 5, 5))]
+        fetches = _coalesceTiles(tiles, 64, 64)
+        assert fetches == [((0, 0, 0, None), [None]),
+                           ((0, 0, 0, (0, 0, 5, 5)), [(0, 0, 5, 5)]),
+                           ((1, 0, 0, (5, 0, 5, 5)), [(5, 0, 5, 5)])]
+
+
+class TestSplitHypercube(object):
+
+    def test_fits_in_one_request(self):
+        chunks = list(_splitHypercube(
+            [0, 0, 0, 0, 0], [4, 4, 2, 1, 1], [1, 1, 1, 1, 1], 2, 64))
+        assert chunks == [([0, 0, 0, 0, 0], [4, 4, 2, 1, 1])]
+
+    def test_split_by_plane(self):
+        chunks = list(_splitHypercube(
+            [0, 0, 0, 0, 0], [4, 4, 2, 1, 1], [1, 1, 1, 1, 1], 1, 16))
+        assert chunks == [([0, 0, 0, 0, 0], [4, 4, 1, 1, 1]),
+                          ([0, 0, 1, 0, 0], [4, 4, 1, 1, 1])]
+
+    def test_split_rows_with_step(self):
+        chunks = list(_splitHypercube(
+            [0, 2, 0, 1, 0], [4, 4, 1, 1, 1], [2, 2, 1, 1, 1], 1, 2))
+        assert chunks == [([0, 2, 0, 1, 0], [4, 1, 1, 1, 1]),
+                          ([0, 4, 0, 1, 0], [4, 1, 1, 1, 1])]
+
+
+class MockHypercubeStore(object):
+
+    def __init__(self):
+        self.pending = 0
+        self.closed = False
+
+    def begin_getHypercube(self, offset, size, step):
+        self.pending += 1
+        return size
+
+    def end_getHypercube(self, size):
+        self.pending -= 1
+        return "\0" * (2 * size[0] * size[1])
+
+    def close(self):
+        self.closed = True
+
+
+class MockPixelsType(object):
+
+    def getBitSize(self):
+        return 16
+
+
+class TestGetHypercubes(object):
+
+    def test_early_exit(self):
+        pixels = PixelsWrapper.__new__(PixelsWrapper)
+        store = MockHypercubeStore()
+        pixels._prepareRawPixelsStore = lambda: store
+        pixels.getPixelsType = lambda: MockPixelsType()
+        chunks = pixels.getHypercubes([0, 0, 0, 0, 0], [4, 4, 4, 1, 1],
+                                      maxBytes=32, readAhead=2)
+        offset, size, data = chunks.next()
+        assert (offset, size) == ([0, 0, 0, 0, 0], [4, 4, 1, 1, 1])
+        chunks.close()
+        # The requests read ahead are collected and the store closed
+        assert store.pending == 0
+        assert store.closed
+
+
+class TestSaveRawPixels(object):
+
+    def test_empty(self, tmpdir):
+        pixels = PixelsWrapper.__new__(PixelsWrapper)
+        pixels.sizeX, pixels.sizeY = 0, 10
+        pixels.sizeZ = pixels.sizeC = pixels.sizeT = 1
+        pixels.getPixelsType = lambda: MockPixelsType()
+        f = tmpdir.join("pixels")
+        f.write("old")
+        assert pixels.saveRawPixels(str(f)) == 0
+        assert f.size() == 0
+
+
+class MockProjectionService(object):
+
+    def __init__(self):
+        self.updateEventId = 1L
+        self.ownRdefId = None
+
+    def projection(self, query, params, _ctx=None):
+        if "r.details.owner.id" in query:
+            return self.ownRdefId and [[rlong(self.ownRdefId)]] or []
+        return [[rlong(self.updateEventId)]]
+
+
+class MockPoolConnection(object):
+
+    def __init__(self):
+        self.query = MockProjectionService()
+
+    def getQueryService(self):
+        return self.query
+
+    def getUserId(self):
+        return 3L
+
+
+class MockRenderingEngine(object):
+
+    def __init__(self):
+        self.closed = False
+        self.loads = 0
+        self.lookups = 0
+        self.rdid = 5L
+        # Rendering def found by lookupRenderingDef
+        self.found = 5L
+
+    def getRenderingDefId(self, _ctx=None):
+        return self.rdid
+
+    def lookupRenderingDef(self, pixelsId, _ctx=None):
+        self.lookups += 1
+        self.rdid = self.found
+        return True
+
+    def loadRenderingDef(self, rdid, _ctx=None):
+        self.rdid = rdid
+
+    def load(self, _ctx=None):
+        self.loads += 1
+
+    def begin_setActive(self, *args):
+        pass
+
+    def begin_setCompressionLevel(self, *args):
+        pass
+
+    def close(self):
+        self.closed = True
+
+
+class TestRenderingEnginePool(object):
+
+    def pooled(self, pool, pixelsId=1L, groupId=2L, rdid=None):
+        re = MockRenderingEngine()
+        pool.register(re, pixelsId, groupId, rdid, None)
+        pool.release(re)
+        return re
+
+    def test_acquire_released_engine(self):
+        pool = RenderingEnginePool(MockPoolConnection())
+        assert pool.acquire(1L, 2L, None, None) is None
+        re = self.pooled(pool)
+        assert not re.closed
+        assert pool.acquire(1L, 3L, None, None) is None
+        assert pool.acquire(1L, 2L, None, None) is re
+        assert pool.acquire(1L, 2L, None, None) is None
+        assert (pool.hits, pool.misses, pool.reloads) == (1, 3, 0)
+        assert re.loads == 0
+
+    def test_unregistered_engine_closed(self):
+        pool = RenderingEnginePool(MockPoolConnection())
+        re = MockRenderingEngine()
+        pool.release(re)
+        assert re.closed
+        assert len(pool) == 0
+
+    def test_reload_when_modified_or_saved(self):
+        conn = MockPoolConnection()
+        pool = RenderingEnginePool(conn)
+        re = self.pooled(pool)
+        re.modified = True
+        assert pool.acquire(1L, 2L, None, None) is re
+        assert re.loads == 1
+        assert not re.modified
+        pool.release(re)
+        conn.query.updateEventId = 2L
+        assert pool.acquire(1L, 2L, None, None) is re
+        assert re.loads == 2
+        assert re.updateEventId == 2L
+        assert pool.reloads == 2
+
+    def test_default_lookup_follows_own_rdef(self):
+        conn = MockPoolConnection()
+        pool = RenderingEnginePool(conn)
+        re = self.pooled(pool)
+        # The user saves their own settings
+        conn.query.ownRdefId = re.found = 7L
+        assert pool.acquire(1L, 2L, None, None) is re
+        assert (re.lookups, re.loads, re.rdefId) == (1, 1, 7L)
+        pool.release(re)
+        assert pool.acquire(1L, 2L, None, None) is re
+        assert (re.lookups, re.loads) == (1, 1)
+        # An explicit rendering def is kept
+        re = self.pooled(pool, rdid=5L)
+        assert pool.acquire(1L, 2L, 5L, None) is re
+        assert (re.lookups, re.loads, re.rdefId) == (0, 0, 5L)
+
+    def test_async_calls_mark_modified(self):
+        re = _PooledRenderingEngine.__new__(_PooledRenderingEngine)
+        re._obj = MockRenderingEngine()
+        re.modified = False
+        re.begin_setCompressionLevel
+        assert not re.modified
+        re.begin_setActive
+        assert re.modified
+
+    def test_lru_eviction(self):
+        pool = RenderingEnginePool(MockPoolConnection(), maxSize=2)
+        first = self.pooled(pool, pixelsId=1L)
+        second = self.pooled(pool, pixelsId=2L)
+        assert pool.acquire(1L, 2L, None, None) is first
+        pool.release(first)
+        third = self.pooled(pool, pixelsId=3L)
+        assert second.closed
+        assert not first.closed and not third.closed
+        assert len(pool) == 2
+        assert pool.evictions == 1
+
+    def test_idle_eviction(self):
+        pool = RenderingEnginePool(MockPoolConnection(), idleTimeout=60)
+        re = self.pooled(pool)
+        re.lastUsed -= 120
+        assert pool.acquire(1L, 2L, None, None) is None
+        assert re.closed
+
+    def test_close(self):
+        pool = RenderingEnginePool(MockPoolConnection())
+        idle = self.pooled(pool)
+        inUse = self.pooled(pool, pixelsId=3L)
+        assert pool.acquire(3L, 2L, None, None) is inUse
+        pool.close()
+        assert idle.closed
+        assert not inUse.closed
+        pool.release(inUse)
+        assert inUse.closed
+
+
+class MockThumbnailStore(object):
+
+    def __init__(self, ctx):
+        self.group = ctx.get('omero.group')
+        self.closed = False
+
+    def getThumbnailByLongestSideSet(self, size, pixelsIds, ctx):
+        assert ctx.get('omero.group') == self.group
+        if -1L in pixelsIds:
+            raise omero.ApiUsageException(None, None, "bad pixels")
+        return dict((x, 'thumb%s' % x) for x in pixelsIds)
+
+    def close(self):
+        self.closed = True
+
+
+class MockThumbnailClient(object):
+
+    def __init__(self):
+        self.sf = self
+        self.stores = []
+
+    def createThumbnailStore(self, ctx=None):
+        store = MockThumbnailStore(ctx)
+        self.stores.append(store)
+        return store
+
+
+class TestLoadThumbnailBatches(object):
+
+    def setup_method(self, method):
+        self.gateway = BlitzGateway.__new__(BlitzGateway)
+        self.gateway.c = MockThumbnailClient()
+
+    def test_failing_callback(self):
+        calls = []
+
+        def callback(imageId, thumb):
+            calls.append(imageId)
+            raise Exception("callback failed")
+        batches = [({}, {1L: 10L}), ({}, {2L: 20L, 3L: 30L})]
+        rv = self.gateway._loadThumbnailBatches(batches, 64, 1, callback)
+        # Every batch is still loaded by the single worker
+        assert rv == {10L: 'thumb1', 20L: 'thumb2', 30L: 'thumb3'}
+        assert sorted(calls) == [10L, 20L, 30L]
+
+    def test_store_per_group(self):
+        batches = [({'omero.group': '1'}, {1L: 10L}),
+                   ({'omero.group': '2'}, {2L: 20L}),
+                   ({'omero.group': '1'}, {3L: 30L})]
+        rv = self.gateway._loadThumbnailBatches(batches, 64, 1, None)
+        assert rv == {10L: 'thumb1', 20L: 'thumb2', 30L: 'thumb3'}
+        stores = self.gateway.c.stores
+        assert sorted(x.group for x in stores) == ['1', '2']
+        assert all(x.closed for x in stores)
+
+    def test_failed_batches(self):
+        batches = [({}, {-1L: 10L, 2L: 20L}), ({}, {3L: 30L})]
+        failed = {}
+        rv = self.gateway._loadThumbnailBatches(batches, 64, 1, None,
+                                                failed)
+        assert rv == {30L: 'thumb3'}
+        assert sorted(failed) == [10L, 20L]
+        with pytest.raises(omero.ApiUsageException):
+            self.gateway._loadThumbnailBatches(batches, 64, 2, None)
+        assert all(x.closed for x in self.gateway.c.stores)
@@ -0,0 +1,152 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""
+Test of the pipelined saves of populate_metadata
+"""
+
+
+import pytest
+
+from omero.model import DatasetI, ExperimenterGroupI
+from omero.model import ImageAnnotationLinkI, MapAnnotationI
+from omero.util.populate_metadata import BulkToMapAnnotationContext
+
+
+class MockUpdateService(object):
+
+    def __init__(self, fail=None):
+        self.fail = fail
+        self.begun = []
+        self.ended = []
+        self.outstanding = 0
+        self.maxOutstanding = 0
+        self.synchronous = []
+
+    def begin_saveAndReturnIds(self, links, ctx):
+        self.begun.append(links)
+        self.outstanding += 1
+        self.maxOutstanding = max(self.maxOutstanding, self.outstanding)
+        return len(self.begun) - 1
+
+    def end_saveAndReturnIds(self, result):
+        self.outstanding -= 1
+        self.ended.append(result)
+        if result == self.fail:
+            raise Exception("save failed")
+        return range(len(self.begun[result]))
+
+    def saveAndReturnObject(self, obj):
+        self.synchronous.append(self.outstanding)
+        return MapAnnotationI(1L, True)
+
+    def saveArray(self, links, ctx):
+        self.synchronous.append(self.outstanding)
+
+
+class MockClient(object):
+
+    def __init__(self, update):
+        self.update = update
+
+    def getSession(self):
+        return self
+
+    def getUpdateService(self):
+        return self.update
+
+
+class MockMapAnnotations(object):
+
+    def __init__(self, sizes):
+        self.sizes = sizes
+
+    def get_map_annotations(self):
+        return self.sizes
+
+
+class TestWriteToOmero(object):
+
+    def context(self, update, sizes):
+        ctx = BulkToMapAnnotationContext.__new__(BulkToMapAnnotationContext)
+        ctx.client = MockClient(update)
+        ctx.target_object = DatasetI(1L, True)
+        ctx.target_object.details.group = ExperimenterGroupI(2L, False)
+        ctx.mapannotations = MockMapAnnotations(sizes)
+
+        def create_links(size):
+            ma = MapAnnotationI()
+            return [ImageAnnotationLinkI() for i in range(size)], ma
+        ctx._create_map_annotation_links = create_links
+        return ctx
+
+    def test_inflight(self):
+        update = MockUpdateService()
+        # Each annotation is a batch of its own, written about ten at once
+        ctx = self.context(update, [3] * 40)
+        ctx.write_to_omero(batch_size=4, inflight=2)
+        assert len(update.begun) == 40
+        assert update.maxOutstanding == 2
+        assert update.ended == range(40)
+        assert update.outstanding == 0
+
+    def test_large_annotation(self):
+        update = MockUpdateService()
+        ctx = self.context(update, [1] * 21 + [5, 1])
+        ctx.write_to_omero(batch_size=2, inflight=2)
+        assert len(update.begun) == 12
+        # The pending batch is finished before the synchronous saves
+        assert update.synchronous == [0, 0, 0, 0]
+        assert update.ended == range(len(update.begun))
+        assert update.outstanding == 0
+
+    def test_error(self):
+        update = MockUpdateService(fail=1)
+        ctx = self.context(update, [3] * 40)
+        with pytest.raises(Exception):
+            ctx.write_to_omero(batch_size=4, inflight=2)
+        # The batch sent after the failed one is still waited for
+        assert update.ended == [0, 1, 2]
+        assert update.outstanding == 0
+        assert ctx.saved == 6
+
+    def test_error_in_begin(self):
+        update = MockUpdateService()
+        begin = update.begin_saveAndReturnIds
+
+        def fail(links, ctx):
+            if len(update.begun) == 2:
+                raise Exception("send failed")
+            return begin(links, ctx)
+        update.begin_saveAndReturnIds = fail
+        ctx = self.context(update, [3] * 40)
+        with pytest.raises(Exception):
+            ctx.write_to_omero(batch_size=4, inflight=2)
+        # The batches already sent are waited for before raising
+        assert update.ended == [0, 1]
+        assert update.outstanding == 0
+        assert ctx.saved == 6
+
+    def test_saved(self):
+        update = MockUpdateService()
+        ctx = self.context(update, [3] * 40)
+        ctx.write_to_omero(batch_size=4, inflight=2)
+        assert ctx.saved == 120
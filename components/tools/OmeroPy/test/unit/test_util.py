@@ -24,15 +24,29 @@
 Test of various things under omero.util
 """
 
+import Ice
 import json
+import os
+import threading
 import pytest
 from path import path
 
 from omero.util.text import CSVStyle, JSONStyle, PlainStyle, TableBuilder
 from omero.util.upgrade_check import UpgradeCheck
 from omero.util.temp_files import manager
+from omero.util.tiles import ChannelMinMax, RPSTileLoop, TileLoopIteration
+from omero.util import rendering
+from omero.util import checksum
+from omero.util import import_candidates
+from omero.util.upload import AdaptiveBlockSize, FilesetUploader
+from omero.util.upload import ResumableFilesetUploader
+from omero.util.bulk_import import BulkImporter, find_duplicate_fileset
+from omero.rtypes import rlong, rstring
 from omero.util import get_user_dir
+from omero.util.script_utils import download_plane
 from omero_version import omero_version
+import omero
+import omero.model
 import omero.util.image_utils as image_utils
 try:
     from PIL import Image
@@ -300,3 +314,769 @@ class TestImageUtils(object):
         data_canvas[256, 256] = [255, 255, 0]
         canvas = Image.fromarray(data_canvas, 'RGB')
         image_utils.paste_image(img, canvas, 0, 0)
+
+
+class TestChannelMinMax(object):
+
+    def test_uint16(self):
+        from struct import pack
+        minmax = ChannelMinMax("uint16")
+        minmax.update(0, pack(">3H", 7, 300, 2))
+        minmax.update(0, pack(">2H", 65535, 4))
+        minmax.update(1, pack(">1H", 5))
+        assert minmax.get(0) == (2, 65535)
+        assert minmax.get(1) == (5, 5)
+        assert minmax.get(2) is None
+
+    def test_byte_sequence(self):
+        minmax = ChannelMinMax("int8")
+        minmax.update(0, [5, 255, 3])
+        assert minmax.get(0) == (-1, 5)
+
+    def test_bit(self):
+        with pytest.raises(ValueError):
+            ChannelMinMax("bit")
+
+
+class MockTileStore(object):
+
+    def __init__(self):
+        self.tiles = 0
+        self.closed = False
+
+    def setPixelsId(self, pixelsId, bypass):
+        pass
+
+    def setTile(self, buffer, z, c, t, x, y, w, h):
+        self.tiles += 1
+
+    def save(self):
+        return None
+
+    def close(self):
+        self.closed = True
+
+
+class MockTileSession(object):
+
+    def __init__(self):
+        self.rps = MockTileStore()
+
+    def createRawPixelsStore(self):
+        return self.rps
+
+
+class StatsTileLoop(RPSTileLoop):
+
+    def __init__(self, session, pixels):
+        super(StatsTileLoop, self).__init__(session, pixels, stats=True)
+        self.saved = []
+
+    def saveStatsInfo(self, minmax):
+        self.saved.append(minmax.get(0))
+
+
+class WriteTiles(TileLoopIteration):
+
+    def __init__(self, fail=None):
+        self.fail = fail
+
+    def run(self, data, z, c, t, x, y, w, h, tileCount):
+        if tileCount == self.fail:
+            raise Exception("iteration failed")
+        data.setTile(chr(tileCount) * (w * h), z, c, t, x, y, w, h)
+
+
+class TestRPSTileLoopStats(object):
+
+    def loop(self):
+        from omero.model import PixelsI, PixelsTypeI
+        from omero.rtypes import rint
+        pixels = PixelsI(1L, True)
+        for name in ("SizeX", "SizeY", "SizeZ", "SizeC", "SizeT"):
+            getattr(pixels, "set" + name)(rint(1))
+        pixels.setSizeX(rint(4))
+        pixels.setPixelsType(PixelsTypeI(1L, True))
+        pixels.getPixelsType().setValue(rstring("uint8"))
+        return StatsTileLoop(MockTileSession(), pixels)
+
+    def test_saved(self):
+        loop = self.loop()
+        assert loop.forEachTile(1, 1, WriteTiles()) == 4
+        assert loop.saved == [(0, 3)]
+
+    def test_not_saved_after_error(self):
+        loop = self.loop()
+        with pytest.raises(Exception):
+            loop.forEachTile(1, 1, WriteTiles(fail=2))
+        assert loop.session.rps.closed
+        assert loop.saved == []
+
+
+class MockRawPixelsStore(object):
+
+    def __init__(self, planes):
+        self.planes = planes
+
+    def getPlane(self, z, c, t):
+        return self.planes[(z, c, t)]
+
+
+class TestDownloadPlane(object):
+
+    def pixels(self, pixelsType):
+        from omero.rtypes import rint, rstring
+        pixels = omero.model.PixelsI()
+        pixels.sizeX = rint(3)
+        pixels.sizeY = rint(2)
+        pixels.pixelsType = omero.model.PixelsTypeI()
+        pixels.pixelsType.value = rstring(pixelsType)
+        return pixels
+
+    def test_uint16(self):
+        from struct import pack
+        store = MockRawPixelsStore(
+            {(0, 1, 2): pack(">6H", 1, 2, 3, 256, 65535, 0)})
+        plane = download_plane(store, self.pixels("uint16"), 0, 1, 2)
+        assert plane.dtype == numpy.uint16
+        assert plane.dtype.isnative
+        assert plane.shape == (2, 3)
+        assert plane.tolist() == [[1, 2, 3], [256, 65535, 0]]
+        plane[0, 0] = 7
+
+    def test_no_copy(self):
+        from struct import pack
+        store = MockRawPixelsStore(
+            {(0, 0, 0): pack(">6f", 0.5, -1, 2, 3, 4, 5)})
+        plane = download_plane(store, self.pixels("float"), 0, 0, 0,
+                               copy=False)
+        assert plane.dtype == numpy.dtype(">f4")
+        assert plane.shape == (2, 3)
+        assert plane.tolist() == [[0.5, -1, 2], [3, 4, 5]]
+        assert not plane.flags.writeable
+        with pytest.raises(ValueError):
+            plane[0, 0] = 7
+
+
+class TestRendering(object):
+
+    def test_linear_lut(self):
+        lut = rendering.quantum_lut("uint8", 10, 20)
+        assert len(lut) == 256
+        assert lut[0] == lut[10] == 0
+        assert lut[15] == 128
+        assert lut[20] == lut[255] == 255
+        lut = rendering.quantum_lut("uint8", 10, 20, inverted=True)
+        assert lut[0] == 255
+        assert lut[255] == 0
+
+    def test_signed_lut(self):
+        lut = rendering.quantum_lut("int16", -100, 100, cd_start=10,
+                                    cd_end=110)
+        assert len(lut) == 65536
+        assert lut[0] == 10
+        assert lut[32768] == 60
+        assert lut[-1] == 110
+
+    def test_signed_polynomial(self):
+        # Non-integer powers of negative values would be NaN
+        lut = rendering.quantum_lut("int8", -100, 100, family='polynomial',
+                                    coefficient=0.5)
+        assert lut[0] == lut[28] == 0
+        assert lut[128] == 180
+        assert lut[228] == lut[255] == 255
+        assert (numpy.diff(lut.astype(numpy.int32)) >= 0).all()
+
+    def test_unsupported(self):
+        with pytest.raises(ValueError):
+            rendering.quantum_lut("float", 0, 1)
+        with pytest.raises(ValueError):
+            rendering.quantum_lut("uint8", 0, 1, family='exponential')
+
+    def test_packed_int(self):
+        plane = numpy.array([[0, 255]], dtype=numpy.uint8)
+        red = {'start': 0, 'end': 255, 'rgba': (255, 0, 0, 255)}
+        rv = rendering.render_as_packed_int([plane], [red], "uint8")
+        assert [x & 0xffffffff for x in rv[0]] == [0xff000000, 0xffff0000]
+        rv = rendering.render_as_packed_int([plane], [red], "uint8",
+                                            greyscale=True)
+        assert (rv[0][1] & 0xffffffff) == 0xffffffff
+
+    def test_matches_per_pixel_rendering(self):
+        planes = [numpy.random.randint(-32768, 32768, (32, 48))
+                  .astype(numpy.int16) for c in range(3)]
+        channels = [{'start': -1000, 'end': 20000,
+                     'rgba': (255, 128, 0, 200), 'inverted': True},
+                    {'start': 10, 'end': 1000, 'rgba': (0, 255, 0, 255),
+                     'family': 'polynomial', 'coefficient': 2.0},
+                    {'start': 1, 'end': 32767, 'rgba': (0, 0, 255, 255),
+                     'family': 'logarithmic'}]
+        rv = rendering.render_as_packed_int(planes, channels, "int16")
+        expected = rendering._render_without_luts(planes, channels)
+        assert rv.shape == (32, 48)
+        assert (rv == expected).all()
+        # Precomputed lookup tables give the same result
+        for c in channels:
+            c['luts'] = rendering.color_luts(rendering.quantum_lut(
+                "int16", c['start'], c['end'], c.get('family', 'linear'),
+                c.get('coefficient', 1.0), inverted=c.get('inverted')),
+                c['rgba'])
+        assert (rendering.render_as_packed_int(
+            planes, channels, "int16") == expected).all()
+
+
+class MockUploader(object):
+
+    def __init__(self, fail=False, id=None):
+        self.data = {}
+        self.fail = fail
+        self.id = id
+        self.failAfter = None
+        self.writes = 0
+        self.closed = False
+
+    def write(self, block, offset, size):
+        if size:
+            self.data[offset] = block
+
+    def begin_write(self, block, offset, size, _response=None, _ex=None):
+        if self.fail or self.writes == self.failAfter:
+            _ex(Exception("write failed"))
+        else:
+            self.writes += 1
+            self.write(block, offset, size)
+            _response()
+
+    def size(self):
+        return max([o + len(b) for o, b in self.data.items()] or [0])
+
+    def truncate(self, size):
+        self.data = dict((o, b) for o, b in self.data.items() if o < size)
+
+    def getFileId(self):
+        return self.id is not None and rlong(self.id) or None
+
+    def close(self):
+        self.closed = True
+
+
+class MockImportProcess(object):
+
+    def __init__(self, count, fail=()):
+        self.uploaders = [MockUploader(i in fail, 100 + i)
+                          for i in range(count)]
+        self.opened = []
+        self.closed = False
+
+    def ice_getIdentity(self):
+        return Ice.Identity(str(id(self)), "session")
+
+    def getUploader(self, index):
+        self.opened.append(index)
+        return self.uploaders[index]
+
+    def close(self):
+        self.closed = True
+
+
+class MockFileRepository(object):
+
+    """
+    ManagedRepository holding the files of the given import process.
+    """
+
+    def __init__(self, proc):
+        self.files = dict((x.id, x) for x in proc.uploaders)
+        self.opened = []
+
+    def fileById(self, id):
+        self.opened.append(id)
+        return self.files[id]
+
+
+class MockSessionClient(object):
+
+    def __init__(self):
+        self.joined = None
+
+    def getSession(self, blocking=True):
+        return None
+
+    def joinSession(self, session):
+        self.joined = session
+
+    def getCommunicator(self):
+        return self
+
+    def stringToProxy(self, proxy):
+        raise Ice.ObjectNotExistException()
+
+
+class MockRepository(object):
+
+    def __init__(self):
+        self.procs = []
+        self._lock = threading.Lock()
+
+    def getManagedRepository(self):
+        return self
+
+    def suggestChecksumAlgorithm(self, offered):
+        return None
+
+    def importFileset(self, fileset, settings):
+        count = fileset.sizeOfUsedFiles()
+        # Every upload fails
+        proc = MockImportProcess(count, fail=range(count))
+        with self._lock:
+            self.procs.append(proc)
+        return proc
+
+
+class MockDedupeRepository(MockRepository):
+
+    """
+    Also the session of the client, holding a fileset of the given files
+    whose images cannot be linked.
+    """
+
+    def __init__(self, files, hasher="SHA1-160"):
+        super(MockDedupeRepository, self).__init__()
+        self.rows = []
+        for path in files:
+            h = checksum.get_hasher("SHA1-160")()
+            h.update(open(path, "rb").read())
+            self.rows.append([rlong(1), rstring(h.hexdigest()),
+                              hasher and rstring(hasher)])
+        self.userId = 2
+
+    def getSession(self):
+        return self
+
+    def getQueryService(self):
+        return self
+
+    def getAdminService(self):
+        return self
+
+    def getUpdateService(self):
+        return self
+
+    def getEventContext(self):
+        return self
+
+    def projection(self, query, params):
+        if "FilesetEntry" in query:
+            return self.rows
+        return []
+
+    def findAllByQuery(self, query, params):
+        pixels = omero.model.PixelsI(1, True)
+        pixels.image = omero.model.ImageI(1, True)
+        return [pixels]
+
+    def saveArray(self, links):
+        raise omero.SecurityViolation(None, None, "read-only group")
+
+
+class TestAdaptiveBlockSize(object):
+
+    def test_grows_on_fast_link(self):
+        sizer = AdaptiveBlockSize(size=100000, maximum=1000000)
+        sizer.record(100000, 0.01)
+        assert sizer.size == 200000
+        for i in range(10):
+            sizer.record(sizer.size, 0.01)
+        assert sizer.size == 1000000
+        stats = sizer.getStats()
+        assert stats["blocks"] == 11
+        assert stats["throughput"] > 1e7
+
+    def test_shrinks_on_slow_link(self):
+        sizer = AdaptiveBlockSize(size=1000000, minimum=100000)
+        sizer.record(1000000, 4.0)
+        assert sizer.size == 500000
+        for i in range(10):
+            sizer.record(sizer.size, sizer.size / 250000.0)
+        assert sizer.size == 250000
+        assert 1.0 < sizer.getStats()["rtt"] < 1.2
+
+    def test_limits(self):
+        sizer = AdaptiveBlockSize(size=10, minimum=100, maximum=50)
+        assert sizer.size == sizer.minimum == sizer.maximum == 100
+        sizer.record(0, 1.0)
+        assert sizer.blocks == 0
+
+
+class TestFilesetUploader(object):
+
+    def files(self, tmpdir):
+        files = []
+        for i, size in enumerate((0, 10, 2500)):
+            f = tmpdir.join("file%s" % i)
+            f.write("%s" % i * size)
+            files.append(str(f))
+        return files
+
+    def test_upload(self, tmpdir):
+        import hashlib
+        files = self.files(tmpdir)
+        proc = MockImportProcess(len(files))
+        progress = []
+        uploader = FilesetUploader(proc, files, blockSize=1000,
+                                   progress=lambda i, n: progress.append(i))
+        hashes = uploader.upload()
+        for f, h, rfs in zip(files, hashes, proc.uploaders):
+            data = open(f, "rb").read()
+            assert h == hashlib.sha1(data).hexdigest()
+            assert "".join(b for o, b in sorted(rfs.data.items())) == data
+            assert rfs.closed
+        assert sorted(progress) == [1, 2, 2, 2]
+        assert uploader.getStats()["bytes"] == 2510
+
+    def test_failed_write(self, tmpdir):
+        files = self.files(tmpdir)
+        proc = MockImportProcess(len(files), fail=(2,))
+        with pytest.raises(Exception):
+            FilesetUploader(proc, files, blockSize=1000).upload()
+        assert proc.uploaders[2].closed
+
+    def test_failed_write_closes_hasher(self, tmpdir):
+        files = self.files(tmpdir)
+        proc = MockImportProcess(len(files), fail=(2,))
+        hashers = []
+
+        def hasher():
+            hashers.append(checksum.TreeHash(chunk=1000, workers=2))
+            return hashers[-1]
+        with pytest.raises(Exception):
+            FilesetUploader(proc, files, blockSize=1000,
+                            hasher=hasher).upload()
+        assert len(hashers) == 3
+        assert all(h._pool is None for h in hashers)
+
+    def test_shared_hash_pool(self, tmpdir):
+        files = self.files(tmpdir)
+        pools = []
+
+        class Recording(checksum.TreeHash):
+
+            def share(self, pool):
+                pools.append(pool)
+                super(Recording, self).share(pool)
+
+        uploader = FilesetUploader(MockImportProcess(len(files)), files,
+                                   blockSize=1000,
+                                   hasher=lambda: Recording(chunk=1000))
+        hashes = uploader.upload()
+        assert len(pools) == 3
+        assert len(set(pools)) == 1
+        assert uploader._hashPool._pool is None
+        assert hashes == FilesetUploader(
+            MockImportProcess(len(files)), files,
+            hasher=lambda: checksum.TreeHash(chunk=1000)).upload()
+
+    def test_adaptive(self, tmpdir):
+        files = self.files(tmpdir)
+        proc = MockImportProcess(len(files))
+        sizer = AdaptiveBlockSize(size=1000, minimum=1000)
+        FilesetUploader(proc, files, blockSize=sizer).upload()
+        assert sizer.size > 1000
+        assert sizer.bytes == 2510
+
+
+class TestResumableFilesetUploader(object):
+
+    def test_resume(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        journal = str(tmpdir.join("journal"))
+        proc = MockImportProcess(len(files))
+        proc.uploaders[2].failAfter = 1
+        uploader = ResumableFilesetUploader(proc, files, journal,
+                                            blockSize=1000, blocksInFlight=1)
+        with pytest.raises(Exception):
+            uploader.upload()
+        uploader.close()
+        assert proc.uploaders[2].size() == 1000
+
+        proc.uploaders[2].failAfter = None
+        uploader = ResumableFilesetUploader(proc, files, journal,
+                                            blockSize=1000)
+        hashes = uploader.upload()
+        assert hashes == FilesetUploader(
+            MockImportProcess(len(files)), files).upload()
+        assert uploader.getStats()["resumed"] == 1000
+        assert proc.uploaders[1].writes == 1  # Complete, so not sent again
+        assert proc.uploaders[2].writes == 3
+        assert "".join(b for o, b in sorted(
+            proc.uploaders[2].data.items())) == open(files[2]).read()
+        uploader.remove()
+        assert not tmpdir.join("journal").check()
+
+    def test_changed_file(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        journal = str(tmpdir.join("journal"))
+        proc = MockImportProcess(len(files))
+        ResumableFilesetUploader(proc, files, journal,
+                                 blockSize=1000).upload()
+        with open(files[2], "r+b") as f:
+            f.seek(1500)
+            f.write("x")
+        os.utime(files[2], (1, 1))
+        uploader = ResumableFilesetUploader(proc, files, journal,
+                                            blockSize=1000)
+        uploader.upload()
+        assert uploader.getStats()["resumed"] == 1000
+        assert proc.uploaders[2].data[1000][500] == "x"
+
+    def test_other_process(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        journal = str(tmpdir.join("journal"))
+        ResumableFilesetUploader(MockImportProcess(len(files)), files,
+                                 journal, blockSize=1000).upload()
+        uploader = ResumableFilesetUploader(MockImportProcess(len(files)),
+                                            files, journal, blockSize=1000)
+        uploader.upload()
+        assert uploader.getStats()["resumed"] == 0
+
+    def test_repository_sizes(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        journal = str(tmpdir.join("journal"))
+        proc = MockImportProcess(len(files))
+        proc.uploaders[2].failAfter = 1
+        uploader = ResumableFilesetUploader(proc, files, journal,
+                                            session="uuid", blockSize=1000,
+                                            blocksInFlight=1)
+        with pytest.raises(Exception):
+            uploader.upload()
+        uploader.close()
+
+        proc.uploaders[2].failAfter = None
+        proc.opened = []
+        repo = MockFileRepository(proc)
+        uploader = ResumableFilesetUploader(proc, files, journal,
+                                            repo=repo, blockSize=1000)
+        uploader.upload()
+        assert uploader.getStats()["resumed"] == 1000
+        # Complete files are checked in the repository, by file ID
+        assert sorted(repo.opened) == [100, 101]
+        assert proc.opened == [2]
+
+    def test_reopen_joins_session(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        journal = str(tmpdir.join("journal"))
+        ResumableFilesetUploader(MockImportProcess(len(files)), files,
+                                 journal, session="uuid").close()
+        client = MockSessionClient()
+        # The import process is gone, but its session was joined
+        assert ResumableFilesetUploader.reopen(client, journal) is None
+        assert client.joined == "uuid"
+
+
+class TestChecksum(object):
+
+    def test_int_checksums(self):
+        crc = checksum.get_hasher("CRC-32")()
+        crc.update("1234")
+        crc.update("56789")
+        assert crc.hexdigest() == "2639f4cb"  # 0xcbf43926, little-endian
+        adler = checksum.get_hasher("Adler-32")()
+        adler.update("Wikipedia")
+        assert adler.hexdigest() == "9803e611"
+
+    def test_crc32c(self):
+        pytest.importorskip("crc32c")
+        crc = checksum.get_hasher("CRC-32C")()
+        crc.update("123456789")
+        assert crc.hexdigest() == "839206e3"
+
+    @pytest.mark.parametrize("size", [0, 10, 4096, 10000])
+    def test_tree_hash(self, size):
+        import hashlib
+        data = "".join(chr(i % 251) for i in range(size))
+        tree = checksum.TreeHash(chunk=4096, workers=2)
+        for i in range(0, size, 1000):
+            tree.update(data[i:i + 1000])
+        chunks = [data[i:i + 4096] for i in range(0, size, 4096)] or [""]
+        expected = hashlib.sha1(
+            "".join(hashlib.sha1(c).digest() for c in chunks)).hexdigest()
+        assert tree.hexdigest() == expected
+        assert tree.hexdigest() == expected
+
+    def test_tree_hash_close(self):
+        tree = checksum.TreeHash(chunk=10, workers=2)
+        tree.update("x" * 25)
+        assert tree._pool is not None
+        checksum.close(tree)
+        assert tree._pool is None
+        checksum.close(checksum.get_hasher("SHA1-160")())
+
+    def test_hash_pool(self):
+        pool = checksum.HashPool(workers=2)
+        trees = [pool.share(checksum.TreeHash(chunk=10)) for i in range(2)]
+        assert trees[0]._pool is trees[1]._pool
+        assert pool.share(checksum.get_hasher("SHA1-160")()) is not None
+        for tree in trees:
+            tree.update("x" * 25)
+        checksum.close(trees[0])
+        # Still running for the other hash
+        expected = checksum.TreeHash(chunk=10)
+        expected.update("x" * 25)
+        assert trees[1].hexdigest() == expected.hexdigest()
+        pool.close()
+        assert pool._pool is None
+
+    def test_unknown(self):
+        with pytest.raises(omero.ClientError):
+            checksum.get_hasher("Unknown-1")
+        assert "SHA1-160" in checksum.ALGORITHMS
+
+
+class TestBulkImporter(object):
+
+    def test_failed_uploads(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)
+        repo = MockRepository()
+        importer = BulkImporter(repo, uploads=1, imports=3, retries=2,
+                                delay=0)
+        results = importer.run([files[1:]] * 4)
+        assert all(isinstance(x, Exception) for x in results)
+        assert importer.getStats()["attempts"] == 12
+        # A single import process per fileset, reused by the retries
+        assert len(repo.procs) == 4
+        assert all(proc.closed for proc in repo.procs)
+
+    def test_dedupe_fallback(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)[1:]
+        repo = MockDedupeRepository(files)
+        importer = BulkImporter(repo, retries=0, delay=0, dedupe=True,
+                                target=omero.model.DatasetI(3, False))
+        importer.run([files])
+        # The images could not be linked, so the fileset was imported
+        assert importer.getStats()["deduplicated"] == 0
+        assert len(repo.procs) == 1
+
+    def test_dedupe_without_hasher(self, tmpdir):
+        files = TestFilesetUploader().files(tmpdir)[1:]
+        repo = MockDedupeRepository(files)
+        assert find_duplicate_fileset(repo, files, "SHA1-160") == 1
+        repo = MockDedupeRepository(files, hasher=None)
+        assert find_duplicate_fileset(repo, files, "SHA1-160") is None
+
+
+class TestImportCandidatesScan(object):
+
+    dirs = ("a", "b", "c/d")
+
+    @pytest.fixture
+    def tree(self, tmpdir, monkeypatch):
+        for d in self.dirs:
+            for name in ("1.tif", "2.tif", "x.txt"):
+                tmpdir.join(d, name).write("", ensure=True)
+        self.calls = []
+        self.grouping = lambda files: [[x] for x in files
+                                       if x.endswith(".tif")]
+
+        def as_dictionary(paths, readers=""):
+            self.calls.append(paths)
+            files = []
+            for path in paths:
+                for root, dirs, names in os.walk(path):
+                    files.extend(os.path.join(root, x) for x in names)
+                if not os.path.isdir(path):
+                    files.append(path)
+            return dict((g[0], g) for g in self.grouping(sorted(files)))
+        monkeypatch.setattr(import_candidates, "as_dictionary",
+                            as_dictionary)
+        return tmpdir
+
+    def expected(self, tree):
+        return sorted(str(tree.join(d, name)) for d in self.dirs
+                      for name in ("1.tif", "2.tif"))
+
+    def test_scan(self, tree):
+        groups = list(import_candidates.scan(str(tree), workers=2))
+        assert sorted(g[0] for g in groups) == self.expected(tree)
+        # Small directories are offered together
+        assert self.calls == [[str(tree.join(d)) for d in self.dirs]]
+
+    def test_batch(self, tree):
+        groups = list(import_candidates.scan(str(tree), workers=2, batch=3))
+        assert sorted(g[0] for g in groups) == self.expected(tree)
+        assert sorted(self.calls) == [[str(tree.join(d))]
+                                      for d in self.dirs]
+
+    def test_hints(self, tree):
+        hints = {}
+        groups = list(import_candidates.scan(str(tree), workers=1,
+                                             hints=hints, batch=3))
+        assert sorted(g[0] for g in groups) == self.expected(tree)
+        assert hints == {("#.tif", "x.txt"): set(["#.tif"])}
+        # Files the hint does not accept are still offered, not dropped
+        assert self.calls == [[str(tree.join("a"))],
+                              [str(tree.join("b", "x.txt"))],
+                              [str(tree.join("c", "d", "x.txt"))]]
+
+    def test_hints_keyed_on_names(self, tree):
+        # A multi-file OME-TIFF does not get the hint of the other units
+        for name in ("1.ome.tif", "2.ome.tif", "x.txt"):
+            tree.join("e", name).write("", ensure=True)
+        ome = [str(tree.join("e", x)) for x in ("1.ome.tif", "2.ome.tif")]
+
+        def grouping(files):
+            found = [x for x in files if x in ome]
+            return [[x] for x in files if x.endswith(".tif") and
+                    x not in ome] + (found and [found])
+        self.grouping = grouping
+        hints = {}
+        groups = list(import_candidates.scan(str(tree), workers=1,
+                                             hints=hints, batch=3))
+        assert ome in groups
+        assert [str(tree.join("e"))] in self.calls
+        assert ("#.ome.tif", "x.txt") not in hints
+
+    def test_hints_verified(self, tree):
+        # Only 1.tif is accepted, so #.tif cannot be hinted
+        self.grouping = lambda files: [[x] for x in files
+                                       if x.endswith("1.tif")]
+        hints = {}
+        groups = list(import_candidates.scan(str(tree), workers=1,
+                                             hints=hints, batch=3))
+        assert len(groups) == 3
+        assert hints == {}
+        assert len(self.calls) == 3
+
+    def test_fileset_root(self, tree):
+        # A file next to the subdirectories keeps them in its unit
+        htd = str(tree.join("c", "plate.htd"))
+        tree.join("c", "plate.htd").write("")
+
+        def grouping(files):
+            plate = [x for x in files if x.endswith(".tif") and
+                     x.startswith(str(tree.join("c")))]
+            return [[htd] + plate] + [
+                [x] for x in files if x.endswith(".tif") and x not in plate]
+        self.grouping = grouping
+        groups = list(import_candidates.scan(str(tree)))
+        assert len(groups) == 5
+        assert [htd, str(tree.join("c/d/1.tif")),
+                str(tree.join("c/d/2.tif"))] in groups
+        assert self.calls == [[str(tree.join(d)) for d in ("a", "b", "c")]]
+
+    def test_spanning(self, tree):
+        self.grouping = lambda files: [[x for x in files
+                                        if x.endswith(".tif")]]
+        with pytest.raises(omero.ClientError):
+            list(import_candidates.scan(str(tree)))
+
+    def test_files_and_errors(self, tree, monkeypatch):
+        paths = [str(tree.join("a", "1.tif")), str(tree.join("b"))]
+        groups = list(import_candidates.scan(paths))
+        assert len(groups) == 3
+        assert [str(tree.join("a", "1.tif"))] in self.calls
+
+        def fail(paths, readers=""):
+            raise omero.InternalException(None, None, "failed")
+        monkeypatch.setattr(import_candidates, "as_dictionary", fail)
+        with pytest.raises(omero.InternalException):
+            list(import_candidates.scan(str(tree)))
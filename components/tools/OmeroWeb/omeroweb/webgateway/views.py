@@ -811,6 +811,11 @@ def _get_prepared_image(request, iid, server_id=None, conn=None,
     logger.debug('Preparing Image:%r saveDefs=%r '
                  'retry=%r request=%r conn=%s' % (iid, saveDefs, retry,
                                                   r, str(conn)))
+    # Engines handed back by the render views with
+    # ImageWrapper.releaseRenderingEngine are then reused by the next
+    # rendering of the same image on this connection
+    if conn.getRenderingEnginePool() is None:
+        conn.enableRenderingEnginePool()
     img = conn.getObject("Image", iid)
     if img is None:
         return
@@ -896,88 +901,102 @@ def render_image_region(request, iid, z, t, conn=None, **kwargs):
         raise Http404
     img, compress_quality = pi
 
-    tile = request.GET.get('tile', None)
-    region = request.GET.get('region', None)
-    level = None
-
-    if tile:
-        try:
-            img._prepareRenderingEngine()
-            w, h = img._re.getTileSize()
-            levels = img._re.getResolutionLevels()-1
-
-            zxyt = tile.split(",")
-            # if tile size is given respect it
-            if len(zxyt) > 4:
-                tile_size = [int(zxyt[3]), int(zxyt[4])]
-                tile_defaults = [w, h]
-                max_tile_length = 1024
-                try:
-                    max_tile_length = int(
-                        conn.getConfigService().getConfigValue(
-                            "omero.pixeldata.max_tile_length"))
-                except:
-                    pass
-                for i, tile_length in enumerate(tile_size):
-                    # use default tile size if <= 0
-                    if tile_length <= 0:
-                        tile_size[i] = tile_defaults[i]
-                    # allow no bigger than max_tile_length
-                    if tile_length > max_tile_length:
-                        tile_size[i] = max_tile_length
-                w, h = tile_size
-            v = int(zxyt[0])
-            if v < 0:
-                msg = "Invalid resolution level %s < 0" % v
-                logger.debug(msg, exc_info=True)
-                return HttpResponseBadRequest(msg)
+    try:
+        tile = request.GET.get('tile', None)
+        region = request.GET.get('region', None)
+        level = None
 
-            if levels == 0:  # non pyramid file
-                if v > 0:
-                    msg = "Invalid resolution level %s, non pyramid file" % v
-                    logger.debug(msg, exc_info=True)
-                    return HttpResponseBadRequest(msg)
-                else:
-                    level = None
-            else:
-                level = levels-v
-                if level < 0:
-                    msg = "Invalid resolution level, \
-                    %s > number of available levels %s " % (v, levels)
+        if tile:
+            try:
+                img._prepareRenderingEngine()
+                w, h = img._re.getTileSize()
+                levels = img._re.getResolutionLevels()-1
+
+                zxyt = tile.split(",")
+                # if tile size is given respect it
+                if len(zxyt) > 4:
+                    tile_size = [int(zxyt[3]), int(zxyt[4])]
+                    tile_defaults = [w, h]
+                    max_tile_length = 1024
+                    try:
+                        max_tile_length = int(
+                            conn.getConfigService().getConfigValue(
+                                "omero.pixeldata.max_tile_length"))
+                    except:
+                        pass
+                    for i, tile_length in enumerate(tile_size):
+                        # use default tile size if <= 0
+                        if tile_length <= 0:
+                            tile_size[i] = tile_defaults[i]
+                        # allow no bigger than max_tile_length
+                        if tile_length > max_tile_length:
+                            tile_size[i] = max_tile_length
+                    w, h = tile_size
+                v = int(zxyt[0])
+                if v < 0:
+                    msg = "Invalid resolution level %s < 0" % v
                     logger.debug(msg, exc_info=True)
                     return HttpResponseBadRequest(msg)
-            x = int(zxyt[1])*w
-            y = int(zxyt[2])*h
-        except:
-            msg = "malformed tile argument, tile=%s" % tile
-            logger.debug(msg, exc_info=True)
-            return HttpResponseBadRequest(msg)
-    elif region:
-        try:
-            xywh = region.split(",")
 
-            x = int(xywh[0])
-            y = int(xywh[1])
-            w = int(xywh[2])
-            h = int(xywh[3])
-        except:
-            msg = "malformed region argument, region=%s" % region
-            logger.debug(msg, exc_info=True)
-            return HttpResponseBadRequest(msg)
-    else:
-        return HttpResponseBadRequest('tile or region argument required')
+                if levels == 0:  # non pyramid file
+                    if v > 0:
+                        msg = ("Invalid resolution level %s, "
+                               "non pyramid file" % v)
+                        logger.debug(msg, exc_info=True)
+                        return HttpResponseBadRequest(msg)
+                    else:
+                        level = None
+                else:
+                    level = levels-v
+                    if level < 0:
+                        msg = "Invalid resolution level, \
+                        %s > number of available levels %s " % (v, levels)
+                        logger.debug(msg, exc_info=True)
+                        return HttpResponseBadRequest(msg)
+                x = int(zxyt[1])*w
+                y = int(zxyt[2])*h
+            except:
+                msg = "malformed tile argument, tile=%s" % tile
+                logger.debug(msg, exc_info=True)
+                return HttpResponseBadRequest(msg)
+        elif region:
+            try:
+                xywh = region.split(",")
 
-    # region details in request are used as key for caching.
-    jpeg_data = webgateway_cache.getImage(request, server_id, img, z, t)
-    if jpeg_data is None:
-        jpeg_data = img.renderJpegRegion(z, t, x, y, w, h, level=level,
-                                         compression=compress_quality)
+                x = int(xywh[0])
+                y = int(xywh[1])
+                w = int(xywh[2])
+                h = int(xywh[3])
+            except:
+                msg = "malformed region argument, region=%s" % region
+                logger.debug(msg, exc_info=True)
+                return HttpResponseBadRequest(msg)
+        else:
+            return HttpResponseBadRequest('tile or region argument required')
+
+        # region details and rendering settings are used as key for caching.
+        jpeg_data = None
+        settings = None
+        if webgateway_cache.cachesRenderedImages():
+            settings = img.getRenderingSettingsHash()
+        if settings is not None:
+            jpeg_data = webgateway_cache.getRenderedImage(
+                server_id, img, settings, z, t, (x, y, w, h), level,
+                compress_quality)
         if jpeg_data is None:
-            raise Http404
-        webgateway_cache.setImage(request, server_id, img, z, t, jpeg_data)
+            jpeg_data = img.renderJpegRegion(z, t, x, y, w, h, level=level,
+                                             compression=compress_quality)
+            if jpeg_data is None:
+                raise Http404
+            if settings is not None:
+                webgateway_cache.setRenderedImage(
+                    server_id, img, settings, z, t, jpeg_data, (x, y, w, h),
+                    level, compress_quality)
 
-    rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
-    return rsp
+        rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
+        return rsp
+    finally:
+        img.releaseRenderingEngine()
 
 
 @login_required()
@@ -1001,40 +1020,52 @@ def render_image(request, iid, z=None, t=None, conn=None, **kwargs):
     if pi is None:
         raise Http404
     img, compress_quality = pi
-    jpeg_data = webgateway_cache.getImage(request, server_id, img, z, t)
-    if jpeg_data is None:
-        jpeg_data = img.renderJpeg(z, t, compression=compress_quality)
+    try:
+        jpeg_data = None
+        settings = None
+        if webgateway_cache.cachesRenderedImages():
+            settings = img.getRenderingSettingsHash()
+        if settings is not None:
+            jpeg_data = webgateway_cache.getRenderedImage(
+                server_id, img, settings, z, t, compression=compress_quality)
         if jpeg_data is None:
-            raise Http404
-        webgateway_cache.setImage(request, server_id, img, z, t, jpeg_data)
-
-    format = request.GET.get('format', 'jpeg')
-    rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
-    if 'download' in kwargs and kwargs['download']:
-        if format == 'png':
-            # convert jpeg data to png...
-            i = Image.open(StringIO(jpeg_data))
-            output = StringIO()
-            i.save(output, 'png')
-            jpeg_data = output.getvalue()
-            output.close()
-            rsp = HttpResponse(jpeg_data, content_type='image/png')
-        elif format == 'tif':
-            # convert jpeg data to TIFF
-            i = Image.open(StringIO(jpeg_data))
-            output = StringIO()
-            i.save(output, 'tiff')
-            jpeg_data = output.getvalue()
-            output.close()
-            rsp = HttpResponse(jpeg_data, content_type='image/tiff')
-        fileName = img.getName().decode('utf8').replace(" ", "_")
-        fileName = fileName.replace(",", ".")
-        rsp['Content-Type'] = 'application/force-download'
-        rsp['Content-Length'] = len(jpeg_data)
-        rsp['Content-Disposition'] = (
-            'attachment; filename=%s.%s'
-            % (fileName, format))
-    return rsp
+            jpeg_data = img.renderJpeg(z, t, compression=compress_quality)
+            if jpeg_data is None:
+                raise Http404
+            if settings is not None:
+                webgateway_cache.setRenderedImage(
+                    server_id, img, settings, z, t, jpeg_data,
+                    compression=compress_quality)
+
+        format = request.GET.get('format', 'jpeg')
+        rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
+        if 'download' in kwargs and kwargs['download']:
+            if format == 'png':
+                # convert jpeg data to png...
+                i = Image.open(StringIO(jpeg_data))
+                output = StringIO()
+                i.save(output, 'png')
+                jpeg_data = output.getvalue()
+                output.close()
+                rsp = HttpResponse(jpeg_data, content_type='image/png')
+            elif format == 'tif':
+                # convert jpeg data to TIFF
+                i = Image.open(StringIO(jpeg_data))
+                output = StringIO()
+                i.save(output, 'tiff')
+                jpeg_data = output.getvalue()
+                output.close()
+                rsp = HttpResponse(jpeg_data, content_type='image/tiff')
+            fileName = img.getName().decode('utf8').replace(" ", "_")
+            fileName = fileName.replace(",", ".")
+            rsp['Content-Type'] = 'application/force-download'
+            rsp['Content-Length'] = len(jpeg_data)
+            rsp['Content-Disposition'] = (
+                'attachment; filename=%s.%s'
+                % (fileName, format))
+        return rsp
+    finally:
+        img.releaseRenderingEngine()
 
 
 @login_required()
@@ -1292,17 +1323,21 @@ def render_split_channel(request, iid, z, t, conn=None, **kwargs):
     if pi is None:
         raise Http404
     img, compress_quality = pi
-    compress_quality = compress_quality and float(compress_quality) or 0.9
-    jpeg_data = webgateway_cache.getSplitChannelImage(request, server_id, img,
-                                                      z, t)
-    if jpeg_data is None:
-        jpeg_data = img.renderSplitChannel(z, t, compression=compress_quality)
+    try:
+        compress_quality = compress_quality and float(compress_quality) or 0.9
+        jpeg_data = webgateway_cache.getSplitChannelImage(
+            request, server_id, img, z, t)
         if jpeg_data is None:
-            raise Http404
-        webgateway_cache.setSplitChannelImage(request, server_id, img, z, t,
-                                              jpeg_data)
-    rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
-    return rsp
+            jpeg_data = img.renderSplitChannel(
+                z, t, compression=compress_quality)
+            if jpeg_data is None:
+                raise Http404
+            webgateway_cache.setSplitChannelImage(
+                request, server_id, img, z, t, jpeg_data)
+        rsp = HttpResponse(jpeg_data, content_type='image/jpeg')
+        return rsp
+    finally:
+        img.releaseRenderingEngine()
 
 
 def debug(f):
@@ -1408,14 +1443,17 @@ def render_row_plot(request, iid, z, t, y, conn=None, w=1, **kwargs):
         raise Http404
     img, compress_quality = pi
     try:
-        gif_data = img.renderRowLinePlotGif(int(z), int(t), int(y), int(w))
-    except:
-        logger.debug('a', exc_info=True)
-        raise
-    if gif_data is None:
-        raise Http404
-    rsp = HttpResponse(gif_data, content_type='image/gif')
-    return rsp
+        try:
+            gif_data = img.renderRowLinePlotGif(int(z), int(t), int(y), int(w))
+        except:
+            logger.debug('a', exc_info=True)
+            raise
+        if gif_data is None:
+            raise Http404
+        rsp = HttpResponse(gif_data, content_type='image/gif')
+        return rsp
+    finally:
+        img.releaseRenderingEngine()
 
 
 @debug
@@ -1444,11 +1482,14 @@ def render_col_plot(request, iid, z, t, x, w=1, conn=None, **kwargs):
     if pi is None:
         raise Http404
     img, compress_quality = pi
-    gif_data = img.renderColLinePlotGif(int(z), int(t), int(x), int(w))
-    if gif_data is None:
-        raise Http404
-    rsp = HttpResponse(gif_data, content_type='image/gif')
-    return rsp
+    try:
+        gif_data = img.renderColLinePlotGif(int(z), int(t), int(x), int(w))
+        if gif_data is None:
+            raise Http404
+        rsp = HttpResponse(gif_data, content_type='image/gif')
+        return rsp
+    finally:
+        img.releaseRenderingEngine()
 
 
 @login_required()
@@ -22,6 +22,7 @@ from types import StringTypes
 
 logger = logging.getLogger(__name__)
 
+import hashlib
 import struct
 import time
 import os
@@ -72,8 +73,11 @@ class FileCache(CacheBase):
     constructor.
     """
     _purge_holdoff = 4
+    # Fraction of the limits an LRU cache is emptied down to when full
+    _lru_low_water = 0.9
 
-    def __init__(self, dir, timeout=60, max_entries=0, max_size=0):
+    def __init__(self, dir, timeout=60, max_entries=0, max_size=0,
+                 lru=False):
         """
         Initialises the class.
 
@@ -81,12 +85,16 @@ class FileCache(CacheBase):
         @param timeout:     Cache timeout in secs
         @param max_entries: If specified, limits number of items to cache
         @param max_size:    Maxium size of cache in KB
+        @param lru:         If True, make room for new entries once full by
+                            deleting the least recently used ones, rather
+                            than refusing them
         """
 
         super(FileCache, self).__init__()
         self._dir = dir
         self._max_entries = max_entries
         self._max_size = max_size
+        self._lru = lru
         self._last_purge = 0
         self._default_timeout = timeout
         if not os.path.exists(self._dir):
@@ -124,6 +132,13 @@ class FileCache(CacheBase):
                 f.close()
                 self._delete(fname)
             else:
+                if self._lru:
+                    # The modification time records the last use, a hit
+                    # is still returned if it cannot be updated
+                    try:
+                        os.utime(fname, None)
+                    except OSError:
+                        logger.debug('Failed to touch %s' % fname)
                 return f.read()
         except (IOError, OSError, EOFError, struct.error):
             pass
@@ -153,6 +168,8 @@ class FileCache(CacheBase):
                 self._delete(fname)
             except OSError:
                 pass
+            if self._lru and self._full():
+                self._evict()
             if self._full():
                 return
 
@@ -321,6 +338,42 @@ class FileCache(CacheBase):
                     count += 1
         logger.debug('purge finished, removed %d files' % count)
 
+    def _evict(self):
+        """
+        Deletes the least recently used entries until the cache is below
+        _lru_low_water of its limits, so that it is not walked again for
+        every new entry.
+        """
+        entries = []
+        for p, _, files in os.walk(self._dir):
+            for f in files:
+                fname = os.path.join(p, f)
+                try:
+                    st = os.stat(fname)
+                except OSError:  # pragma: nocover
+                    continue
+                # Count allocated blocks, as du does, where we can
+                kb = (getattr(st, 'st_blocks', 0) * 512 or st.st_size) / 1024
+                entries.append((st.st_mtime, kb, fname))
+        entries.sort()
+        count = len(entries)
+        size = sum(e[1] for e in entries)
+        max_entries = self._max_entries * self._lru_low_water
+        max_size = self._max_size * self._lru_low_water
+        removed = 0
+        for mtime, kb, fname in entries:
+            if ((not self._max_entries or count < max_entries) and
+                    (not self._max_size or size < max_size)):
+                break
+            try:
+                self._delete(fname)
+            except OSError:  # pragma: nocover
+                continue
+            count -= 1
+            size -= kb
+            removed += 1
+        logger.debug('evicted %d least recently used files' % removed)
+
     def _createdir(self):
         """
         Creates a directory for the root dir of the cache.
@@ -386,7 +439,8 @@ class WebGatewayCache (object):
             self._img_cache = backend(dir=os.path.join(basedir, 'img'),
                                       timeout=IMG_CACHE_TIME,
                                       max_entries=0,
-                                      max_size=IMG_CACHE_SIZE)
+                                      max_size=IMG_CACHE_SIZE,
+                                      lru=True)
             self._thumb_cache = backend(dir=os.path.join(basedir, 'thumb'),
                                         timeout=THUMB_CACHE_TIME,
                                         max_entries=0,
@@ -689,8 +743,9 @@ class WebGatewayCache (object):
         T and Z indexes ( = 0).
         TODO: Doesn't clear any data stored WITH r, t, or z specified in cache
         key?
-        Also clears thumbnail (but not thumbs with size specified) and json
-        data for this image.
+        Also clears thumbnail (but not thumbs with size specified), rendered
+        planes, which are kept under the same key, and json data for this
+        image.
 
         @param r:               http request for cache key
         @param client_base:     server_id for cache key
@@ -731,6 +786,94 @@ class WebGatewayCache (object):
         """
         return self.getImage(r, client_base, img, 0, 0, '-ometiff')
 
+    ##
+    # Rendered planes
+
+    def cachesRenderedImages(self):
+        """
+        Returns False if rendered planes are not cached at all, so that
+        callers need not compute the rendering settings hash.
+
+        @rtype:     Boolean
+        """
+        return type(self._img_cache) is not CacheBase
+
+    def _renderedKey(self, client_base, img, settings, z, t, region=None,
+                     level=None, compression=None):
+        """
+        Returns a key for caching a rendered plane. Unlike L{_imageKey} this
+        does not depend on the request, but on the rendering settings hash,
+        so that changes to saved settings are picked up too. The planes are
+        kept in the image cache, under the image's key.
+
+        @param client_base:     server_id for cache key
+        @param img:             L{omero.gateway.ImageWrapper} for IDs
+        @param settings:        Rendering settings hash, see
+                                L{omero.gateway.ImageWrapper.
+                                getRenderingSettingsHash}
+        @param z:               Z index
+        @param t:               T index
+        @param region:          Region as (x, y, width, height) or None
+        @param level:           Resolution level or None
+        @param compression:     Compression level or None
+        """
+
+        iid = img.getId()
+        pre = str(iid)[:-4]
+        if len(pre) == 0:
+            pre = '0'
+        plane = hashlib.sha1(repr(
+            (z, t, region, level, compression, settings))).hexdigest()
+        return 'img_%s/%s/%s/rendered-%s-%s' % (
+            client_base, pre, str(iid), str(img.getPixelsId()), plane)
+
+    def setRenderedImage(self, client_base, img, settings, z, t, obj,
+                         region=None, level=None, compression=None):
+        """
+        Puts a rendered plane into cache.
+
+        @param client_base:     server_id for cache key
+        @param img:             ImageWrapper for cache key
+        @param settings:        Rendering settings hash for cache key
+        @param z:               Z index for cache key
+        @param t:               T index for cache key
+        @param obj:             Data to cache
+        @param region:          Region for cache key
+        @param level:           Resolution level for cache key
+        @param compression:     Compression level for cache key
+        """
+
+        k = self._renderedKey(client_base, img, settings, z, t, region,
+                              level, compression)
+        self._cache_set(self._img_cache, k, obj)
+        return True
+
+    def getRenderedImage(self, client_base, img, settings, z, t,
+                         region=None, level=None, compression=None):
+        """
+        Gets a rendered plane from cache.
+
+        @param client_base:     server_id for cache key
+        @param img:             ImageWrapper for cache key
+        @param settings:        Rendering settings hash for cache key
+        @param z:               Z index for cache key
+        @param t:               T index for cache key
+        @param region:          Region for cache key
+        @param level:           Resolution level for cache key
+        @param compression:     Compression level for cache key
+        @return:                Image data
+        @rtype:                 String
+        """
+
+        k = self._renderedKey(client_base, img, settings, z, t, region,
+                              level, compression)
+        r = self._img_cache.get(k)
+        if r is None:
+            logger.debug('  fail: %s' % k)
+        else:
+            logger.debug('cached: %s' % k)
+        return r
+
     ##
     # hierarchies (json)
 
@@ -29,7 +29,11 @@ import omero.clients
 from omeroweb.testlib import IWebTest
 from omeroweb.testlib import post, get
 
+from omeroweb.connector import Connector
+from omeroweb.webgateway import views
+
 from django.core.urlresolvers import reverse
+from django.test.client import RequestFactory
 
 from cStringIO import StringIO
 try:
@@ -264,6 +268,27 @@ class TestRenderImageRegion(IWebTest):
         for v in self.client.getSession().activeServices():
             assert 'RenderingEngine' not in v, 'Leaked rendering engine!'
 
+    def test_render_image_reuses_rendering_engine(self):
+        """
+        Rendering an image again on the same connection reuses the
+        rendering engine handed back by the previous render
+        """
+        iid = self.create_test_image(size_c=2, session=self.sf).id.val
+        conn = omero.gateway.BlitzGateway(client_obj=self.client)
+        request = RequestFactory().get(
+            reverse('webgateway.views.render_image', args=[iid, 0, 0]),
+            {'c': '1|0:255$FF0000,2|0:255$00FF00'})
+        request.session = {'connector': Connector(None, False)}
+        try:
+            for i in range(2):
+                rsp = views.render_image(request, iid, 0, 0, conn=conn)
+                Image.open(StringIO(rsp.content)).verify()
+            pool = conn.getRenderingEnginePool()
+            assert pool.hits == 1
+            assert len(pool) == 1
+        finally:
+            conn.disableRenderingEnginePool()
+
     def test_render_image_region_incomplete_request(self):
         """
         Either `tile` or `region` is a required request argument to
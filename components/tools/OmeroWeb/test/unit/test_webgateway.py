@@ -162,6 +162,32 @@ class TestFileCache(object):
         self.cache.wipe()
         assert self.cache._num_entries == 0
 
+    def testLRU(self):
+        self.cache._lru = True
+        self.cache._max_entries = 10
+        for i in range(10):
+            self.cache.set('date/test/%d' % i, str(i))
+            # Last used i seconds after the epoch, oldest first
+            os.utime(self.cache._key_to_file('date/test/%d' % i), (i, i))
+        assert self.cache.get('date/test/0') == '0'
+        # Full, so the two least recently used entries make room
+        self.cache.set('date/test/10', '10')
+        assert self.cache.get('date/test/10') == '10', 'LRU eviction failed'
+        assert self.cache.get('date/test/0') == '0', 'Used entry evicted'
+        assert self.cache.get('date/test/1') is None
+        assert self.cache.get('date/test/2') is None
+        assert self.cache.get('date/test/3') == '3'
+        assert self.cache._num_entries == 9
+
+    def testLRUTouchFailure(self, monkeypatch):
+        self.cache._lru = True
+        self.cache.set('date/test/1', '1')
+
+        def utime(*args):
+            raise OSError("read-only")
+        monkeypatch.setattr(os, 'utime', utime)
+        assert self.cache.get('date/test/1') == '1', 'Hit discarded'
+
 
 class TestWebGatewayCacheTempFile(object):
     @pytest.fixture(autouse=True)
@@ -347,6 +373,46 @@ class TestWebGatewayCache(object):
         self.wcache.clear()
         assert self.wcache._img_cache._num_entries == 0
 
+    def testRenderedImageCache(self):
+        uid = 123
+
+        class img:
+
+            def getId(self):
+                return 1
+
+            def getPixelsId(self):
+                return 2
+        img = img()
+        assert self.wcache.cachesRenderedImages()
+        assert (self.wcache.getRenderedImage('test', img, 'abc', 2, 3) is
+                None)
+        self.wcache.setRenderedImage('test', img, 'abc', 2, 3, 'imagedata')
+        assert (self.wcache.getRenderedImage('test', img, 'abc', 2, 3) ==
+                'imagedata')
+        # Any change of settings, plane, region or quality is a miss
+        assert (self.wcache.getRenderedImage('test', img, 'abd', 2, 3) is
+                None)
+        assert (self.wcache.getRenderedImage('test', img, 'abc', 2, 4) is
+                None)
+        assert self.wcache.getRenderedImage(
+            'test', img, 'abc', 2, 3, region=(0, 0, 10, 10)) is None
+        assert self.wcache.getRenderedImage(
+            'test', img, 'abc', 2, 3, compression='0.5') is None
+        self.wcache.setRenderedImage('test', img, 'abc', 2, 3, 'regiondata',
+                                     region=(0, 0, 10, 10), level=1)
+        assert self.wcache.getRenderedImage(
+            'test', img, 'abc', 2, 3, region=(0, 0, 10, 10),
+            level=1) == 'regiondata'
+        # Cleared with the image
+        self.wcache.clearImage(None, 'test', uid, img, skipJson=True)
+        assert (self.wcache.getRenderedImage('test', img, 'abc', 2, 3) is
+                None)
+        assert self.wcache.getRenderedImage(
+            'test', img, 'abc', 2, 3, region=(0, 0, 10, 10),
+            level=1) is None
+        assert not WebGatewayCache().cachesRenderedImages()
+
     def testLocks(self):
         wcache2 = WebGatewayCache(backend=FileCache,
                                   basedir=self.wcache._basedir)